@@ -1,5 +1,6 @@
 plugins {
     id("com.gradle.plugin-publish") version "0.15.0"
+    id("me.champeau.jmh") version "0.6.6"
     `java-gradle-plugin`
     `maven-publish`
 }
@@ -16,6 +17,8 @@ gradlePlugin {
             implementationClass = "me.walkerknapp.usecmakelibrary.CMakeLibrary"
         }
     }
+    // The benchmark scenarios apply the plugin to generated projects through TestKit
+    testSourceSets(sourceSets["jmh"])
 }
 
 pluginBundle {
@@ -33,5 +36,13 @@ dependencies {
     implementation("org.apache.commons:commons-lang3:3+")
     implementation("me.walkerknapp:cfi-java:0.0.2")
     implementation("com.dslplatform:dsl-json-java8:1+")
+
+    jmhImplementation(gradleTestKit())
+}
+
+jmh {
+    resultFormat.set("JSON")
+    // Run a subset with -PjmhIncludes=<regex>, such as -PjmhIncludes=PluginScenarioBenchmark
+    (findProperty("jmhIncludes") as String?)?.let { includes.set(listOf(it)) }
 }
 
@@ -0,0 +1,80 @@
+package me.walkerknapp.usecmakelibrary.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole Gradle builds of generated CMake projects through TestKit: configuring, building with nothing to do, and
+ * building after one source changed. These need CMake and a C++ toolchain, and target machines without a toolchain
+ * on this machine are skipped by the plugin, so only add to the layout overhead.
+ *
+ * Builds run in a TestKit daemon that is kept between invocations, as a developer's daemon would be.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PluginScenarioBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Scenario {
+        @Param({"10", "100"})
+        public int targets;
+
+        @Param({"1", "2"})
+        public int targetMachines;
+
+        private SyntheticProject project;
+
+        @Setup(Level.Trial)
+        public void generate() throws IOException {
+            project = SyntheticProject.create(targets, targetMachines);
+            // Configured and built once, so that later builds start from a warm build directory
+            project.build(SyntheticProject.BUILD_TASK);
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            project.delete();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FreshBuildDirectories {
+        @Setup(Level.Invocation)
+        public void deleteBuildDirectories(Scenario scenario) throws IOException {
+            scenario.project.deleteBuildDirectory();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ChangedSource {
+        @Setup(Level.Invocation)
+        public void changeSource(Scenario scenario) throws IOException {
+            scenario.project.changeSource();
+        }
+    }
+
+    @Benchmark
+    public void configuration(Scenario scenario) {
+        scenario.project.build("help");
+    }
+
+    @Benchmark
+    public void freshConfiguration(Scenario scenario, FreshBuildDirectories fresh) {
+        scenario.project.build("help");
+    }
+
+    @Benchmark
+    public void noOpBuild(Scenario scenario) {
+        scenario.project.build(SyntheticProject.BUILD_TASK);
+    }
+
+    @Benchmark
+    public void incrementalBuild(Scenario scenario, ChangedSource changed) {
+        scenario.project.build(SyntheticProject.BUILD_TASK);
+    }
+}
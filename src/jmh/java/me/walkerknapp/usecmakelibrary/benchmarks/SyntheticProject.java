@@ -0,0 +1,188 @@
+package me.walkerknapp.usecmakelibrary.benchmarks;
+
+import org.gradle.testkit.runner.GradleRunner;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A generated CMake project with a number of static library targets depending on each other, built with the plugin
+ * applied for a number of target machines.
+ */
+class SyntheticProject {
+    static final String BUILD_TASK = "cmakeBuildAll";
+
+    private static final List<String> ARCHITECTURES = List.of("x86_64", "x86", "aarch64", "arm-v7");
+
+    private final Path directory;
+    private int changes;
+
+    private SyntheticProject(Path directory) {
+        this.directory = directory;
+    }
+
+    static SyntheticProject create(int targets, int targetMachines) throws IOException {
+        Path directory = Files.createTempDirectory("synthetic-cmake-project");
+
+        StringBuilder cmakeLists = new StringBuilder()
+                .append("cmake_minimum_required(VERSION 3.15)\n")
+                .append("project(synthetic CXX)\n\n");
+        for (int i = 0; i < targets; i++) {
+            Path sources = Files.createDirectories(directory.resolve("src").resolve("lib" + i));
+            Path headers = Files.createDirectories(directory.resolve("include").resolve("lib" + i));
+            Files.writeString(headers.resolve("lib" + i + ".h"), "int lib" + i + "_value();\n", StandardCharsets.UTF_8);
+            Files.writeString(sources.resolve("a.cpp"), source(i, "a"), StandardCharsets.UTF_8);
+            Files.writeString(sources.resolve("b.cpp"), source(i, "b"), StandardCharsets.UTF_8);
+
+            cmakeLists.append("add_library(lib").append(i).append(" STATIC src/lib").append(i).append("/a.cpp src/lib").append(i).append("/b.cpp)\n");
+            cmakeLists.append("target_include_directories(lib").append(i).append(" PUBLIC $<BUILD_INTERFACE:${CMAKE_CURRENT_SOURCE_DIR}/include>)\n");
+            // Every target depends on the one before it and on one halfway back, so the dependency graph is deep and wide
+            if (i > 0) {
+                cmakeLists.append("target_link_libraries(lib").append(i).append(" PUBLIC lib").append(i - 1);
+                if (i / 2 != i - 1) {
+                    cmakeLists.append(" lib").append(i / 2);
+                }
+                cmakeLists.append(")\n");
+            }
+            cmakeLists.append("install(TARGETS lib").append(i).append(" ARCHIVE DESTINATION lib)\n\n");
+        }
+        cmakeLists.append("install(DIRECTORY include/ DESTINATION include)\n");
+        Files.writeString(directory.resolve("CMakeLists.txt"), cmakeLists.toString(), StandardCharsets.UTF_8);
+
+        String operatingSystem = hostOperatingSystem();
+        String machines = ARCHITECTURES.stream()
+                .limit(targetMachines)
+                .map(architecture -> "machines." + operatingSystem + ".architecture('" + architecture + "')")
+                .collect(Collectors.joining(", "));
+
+        Files.writeString(directory.resolve("settings.gradle"), "rootProject.name = 'synthetic'\n", StandardCharsets.UTF_8);
+        Files.writeString(directory.resolve("build.gradle"), String.join("\n",
+                "plugins {",
+                "    id 'me.walkerknapp.use-cmake-library'",
+                "}",
+                "",
+                "cmake {",
+                "    targetMachines.set([" + machines + "])",
+                "}",
+                "",
+                "tasks.register('" + BUILD_TASK + "') {",
+                "    dependsOn tasks.withType(me.walkerknapp.usecmakelibrary.tasks.CMakeBuildTask)",
+                "}",
+                ""), StandardCharsets.UTF_8);
+
+        return new SyntheticProject(directory);
+    }
+
+    private static String source(int target, String name) {
+        StringBuilder source = new StringBuilder("#include <lib" + target + "/lib" + target + ".h>\n");
+        if (target > 0) {
+            source.append("#include <lib").append(target - 1).append("/lib").append(target - 1).append(".h>\n");
+        }
+        source.append("\nint lib").append(target).append("_").append(name).append("() {\n")
+                .append("    int value = 0;\n")
+                .append("    for (int i = 0; i < 100; i++) {\n")
+                .append("        value += i * ").append(target + 1).append(";\n")
+                .append("    }\n")
+                .append("    return value;\n")
+                .append("}\n");
+        if (name.equals("a")) {
+            source.append("\nint lib").append(target).append("_value() {\n")
+                    .append("    return lib").append(target).append("_a()")
+                    .append(target > 0 ? " + lib" + (target - 1) + "_value()" : "").append(";\n")
+                    .append("}\n");
+        }
+        return source.toString();
+    }
+
+    private static String hostOperatingSystem() {
+        String name = System.getProperty("os.name").toLowerCase();
+        if (name.contains("win")) {
+            return "windows";
+        } else if (name.contains("mac")) {
+            return "macOS";
+        }
+        return "linux";
+    }
+
+    /**
+     * A codemodel target reply for the {@code index}th target of a project, with the sections CMake writes for a
+     * typical static library.
+     */
+    static String targetReply(int index) {
+        String name = "lib" + index;
+        return "{\n" +
+                "  \"archive\": {},\n" +
+                "  \"artifacts\": [{\"path\": \"lib" + name + ".a\"}],\n" +
+                "  \"backtrace\": 1,\n" +
+                "  \"backtraceGraph\": {\n" +
+                "    \"commands\": [\"add_library\", \"install\", \"target_include_directories\"],\n" +
+                "    \"files\": [\"CMakeLists.txt\"],\n" +
+                "    \"nodes\": [{\"file\": 0}, {\"command\": 0, \"file\": 0, \"line\": " + (index * 4 + 3) + ", \"parent\": 0}]\n" +
+                "  },\n" +
+                "  \"compileGroups\": [{\n" +
+                "    \"compileCommandFragments\": [{\"fragment\": \"-O3 -DNDEBUG\"}, {\"fragment\": \"-fPIC\"}],\n" +
+                "    \"defines\": [{\"backtrace\": 1, \"define\": \"SYNTHETIC_" + index + "\"}],\n" +
+                "    \"includes\": [{\"backtrace\": 1, \"path\": \"/src/synthetic/include\"}],\n" +
+                "    \"language\": \"CXX\",\n" +
+                "    \"sourceIndexes\": [0, 1]\n" +
+                "  }],\n" +
+                "  \"dependencies\": [" + (index > 0 ? "{\"backtrace\": 1, \"id\": \"lib" + (index - 1) + "::@6890427a1f51a3e7e1df\"}" : "") + "],\n" +
+                "  \"id\": \"" + name + "::@6890427a1f51a3e7e1df\",\n" +
+                "  \"install\": {\"destinations\": [{\"backtrace\": 1, \"path\": \"lib\"}], \"prefix\": {\"path\": \"/usr/local\"}},\n" +
+                "  \"name\": \"" + name + "\",\n" +
+                "  \"nameOnDisk\": \"lib" + name + ".a\",\n" +
+                "  \"paths\": {\"build\": \".\", \"source\": \".\"},\n" +
+                "  \"sourceGroups\": [{\"name\": \"Source Files\", \"sourceIndexes\": [0, 1]}],\n" +
+                "  \"sources\": [\n" +
+                "    {\"backtrace\": 1, \"compileGroupIndex\": 0, \"path\": \"src/" + name + "/a.cpp\", \"sourceGroupIndex\": 0},\n" +
+                "    {\"backtrace\": 1, \"compileGroupIndex\": 0, \"path\": \"src/" + name + "/b.cpp\", \"sourceGroupIndex\": 0}\n" +
+                "  ],\n" +
+                "  \"type\": \"STATIC_LIBRARY\"\n" +
+                "}\n";
+    }
+
+    void build(String... tasks) {
+        List<String> arguments = new ArrayList<>(List.of(tasks));
+        arguments.add("--stacktrace");
+        GradleRunner.create()
+                .withProjectDir(directory.toFile())
+                .withPluginClasspath()
+                .withArguments(arguments)
+                .build();
+    }
+
+    /**
+     * Changes the contents of one source file, so that the next build has one object to compile again.
+     */
+    void changeSource() throws IOException {
+        Files.writeString(directory.resolve("src").resolve("lib0").resolve("b.cpp"), "// Change " + (++changes) + "\n",
+                StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    void deleteBuildDirectory() throws IOException {
+        deleteRecursively(directory.resolve("build"));
+    }
+
+    void delete() throws IOException {
+        deleteRecursively(directory);
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path file : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+}
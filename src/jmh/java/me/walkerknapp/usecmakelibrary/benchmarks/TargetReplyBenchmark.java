@@ -0,0 +1,53 @@
+package me.walkerknapp.usecmakelibrary.benchmarks;
+
+import me.walkerknapp.usecmakelibrary.util.CMakeFileApi;
+import me.walkerknapp.usecmakelibrary.util.CMakeTargetReply;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the codemodel target replies of a build directory, which happens for every configured build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TargetReplyBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int targets;
+
+    private Path buildDirectory;
+    private List<String> replyFiles;
+
+    @Setup(Level.Trial)
+    public void writeReplies() throws IOException {
+        buildDirectory = Files.createTempDirectory("target-replies");
+        Path replyDirectory = Files.createDirectories(CMakeFileApi.replyDirectory(buildDirectory));
+
+        replyFiles = new ArrayList<>();
+        for (int i = 0; i < targets; i++) {
+            String replyFile = "target-lib" + i + "-Release-" + String.format("%020x", i) + ".json";
+            Files.writeString(replyDirectory.resolve(replyFile), SyntheticProject.targetReply(i), StandardCharsets.UTF_8);
+            replyFiles.add(replyFile);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteReplies() throws IOException {
+        SyntheticProject.deleteRecursively(buildDirectory);
+    }
+
+    @Benchmark
+    public List<CMakeTargetReply> readAll() {
+        return CMakeTargetReply.readAll(buildDirectory, replyFiles);
+    }
+}
@@ -0,0 +1,50 @@
+package me.walkerknapp.usecmakelibrary.benchmarks;
+
+import me.walkerknapp.usecmakelibrary.CMakeLibrary;
+import me.walkerknapp.usecmakelibrary.util.CMakeTargetReply;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Naming variants and classifying the artifacts published in them, which happens for every variant of every build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VariantNamingBenchmark {
+    private final Set<String> oneMachine = Set.of("linux");
+    private final Set<String> threeMachines = Set.of("linux", "windows", "macos");
+
+    // Artifact paths as target replies give them, for shared and static libraries on each platform
+    private final List<String> artifactPaths = List.of(
+            "libfoo.so",
+            "Release/foo.dll",
+            "Release/foo.lib",
+            "libfoo.a",
+            "foo.pdb",
+            "libfoo.dylib");
+
+    @Benchmark
+    public String hiddenDimension() {
+        return CMakeLibrary.createDimensionSuffix("Linux", oneMachine);
+    }
+
+    @Benchmark
+    public String visibleDimension() {
+        return CMakeLibrary.createDimensionSuffix("Linux", threeMachines);
+    }
+
+    @Benchmark
+    public void classifyArtifacts(Blackhole blackhole) {
+        for (String path : artifactPaths) {
+            blackhole.consume(CMakeTargetReply.Kind.of(path));
+        }
+    }
+}
@@ -1,10 +1,19 @@
 package me.walkerknapp.usecmakelibrary;
 
+import me.walkerknapp.usecmakelibrary.tasks.CMakeInstallTask;
+import me.walkerknapp.usecmakelibrary.util.CompilerLauncher;
 import org.gradle.api.Action;
+import org.gradle.api.Project;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.ProviderFactory;
 import org.gradle.api.provider.SetProperty;
+import org.gradle.nativeplatform.Linkage;
 import org.gradle.nativeplatform.TargetMachine;
 
+import java.io.File;
+import java.time.Duration;
 import java.util.List;
 
 public class CMakeExtension {
@@ -12,10 +21,86 @@ public class CMakeExtension {
 
     private Action<List<String>> arguments;
 
-    public CMakeExtension(ObjectFactory objectFactory) {
+    private Property<String> generator;
+
+    private Property<String> cmakeExecutable;
+    private Property<String> makeExecutable;
+    private Property<String> ninjaExecutable;
+
+    private Property<Boolean> useCompilerLauncher;
+    private Property<String> compilerLauncher;
+    private DirectoryProperty compilerLauncherCacheDirectory;
+    private Property<String> compilerLauncherMaxSize;
+    private Property<Boolean> recordBuildTimings;
+    private Property<Boolean> profileGuidedOptimization;
+    private Property<String> llvmProfdataExecutable;
+    private Property<Boolean> linkTimeOptimization;
+    private Property<Boolean> splitDebugInfo;
+
+    private Property<Boolean> parallelConfigure;
+    private Property<Integer> maxParallelConfigures;
+    private Property<Boolean> reuseConfiguration;
+
+    private SetProperty<String> exportedTargets;
+
+    private Property<CMakeInstallTask.InstallMode> installMode;
+
+    private Property<Boolean> sharedBuildDirectories;
+    private Property<Long> sharedBuildCacheMaxSize;
+    private Property<Duration> sharedBuildCacheMaxAge;
+
+    private Property<Boolean> preferBinaries;
+    private Property<String> binaryCoordinates;
+
+    private Property<Boolean> lazyConfiguration;
+    private SetProperty<Linkage> linkages;
+
+    public CMakeExtension(ObjectFactory objectFactory, ProviderFactory providerFactory, Project project) {
         this.targetMachines = objectFactory.setProperty(TargetMachine.class);
 
         this.arguments = strings -> { /* no-op */ };
+
+        this.generator = objectFactory.property(String.class);
+
+        this.cmakeExecutable = objectFactory.property(String.class)
+                .convention(providerFactory.environmentVariable("CMAKE_EXECUTABLE").orElse("cmake"));
+        this.makeExecutable = objectFactory.property(String.class)
+                .convention(providerFactory.environmentVariable("MAKE_EXECUTABLE").orElse("make"));
+        this.ninjaExecutable = objectFactory.property(String.class)
+                .convention(providerFactory.environmentVariable("NINJA_EXECUTABLE").orElse("ninja"));
+
+        this.useCompilerLauncher = objectFactory.property(Boolean.class).convention(false);
+        this.compilerLauncher = objectFactory.property(String.class)
+                .convention(providerFactory.environmentVariable("PATH").map(path -> CompilerLauncher.detect(path).orElse(null)));
+        this.compilerLauncherCacheDirectory = objectFactory.directoryProperty()
+                .convention(project.getLayout().dir(providerFactory.provider(() ->
+                        new File(project.getGradle().getGradleUserHomeDir(), "caches/cmake-compiler-launcher"))));
+        this.compilerLauncherMaxSize = objectFactory.property(String.class).convention("5G");
+        this.recordBuildTimings = objectFactory.property(Boolean.class).convention(false);
+        this.profileGuidedOptimization = objectFactory.property(Boolean.class).convention(false);
+        this.llvmProfdataExecutable = objectFactory.property(String.class)
+                .convention(providerFactory.environmentVariable("LLVM_PROFDATA").orElse("llvm-profdata"));
+        this.linkTimeOptimization = objectFactory.property(Boolean.class).convention(false);
+        this.splitDebugInfo = objectFactory.property(Boolean.class).convention(false);
+
+        this.parallelConfigure = objectFactory.property(Boolean.class).convention(false);
+        this.maxParallelConfigures = objectFactory.property(Integer.class).convention(Runtime.getRuntime().availableProcessors());
+        this.reuseConfiguration = objectFactory.property(Boolean.class).convention(true);
+
+        this.exportedTargets = objectFactory.setProperty(String.class);
+
+        this.installMode = objectFactory.property(CMakeInstallTask.InstallMode.class).convention(CMakeInstallTask.InstallMode.COPY);
+
+        this.sharedBuildDirectories = objectFactory.property(Boolean.class).convention(false);
+        this.sharedBuildCacheMaxSize = objectFactory.property(Long.class).convention(20L * 1024 * 1024 * 1024);
+        this.sharedBuildCacheMaxAge = objectFactory.property(Duration.class).convention(Duration.ofDays(30));
+
+        this.preferBinaries = objectFactory.property(Boolean.class).convention(false);
+        this.binaryCoordinates = objectFactory.property(String.class)
+                .convention(providerFactory.provider(() -> project.getGroup() + ":" + project.getName() + ":" + project.getVersion()));
+
+        this.lazyConfiguration = objectFactory.property(Boolean.class).convention(false);
+        this.linkages = objectFactory.setProperty(Linkage.class).convention(List.of(Linkage.SHARED, Linkage.STATIC));
     }
 
     public SetProperty<TargetMachine> getTargetMachines() {
@@ -29,4 +114,206 @@ public class CMakeExtension {
     public void setArguments(Action<List<String>> arguments) {
         this.arguments = arguments;
     }
+
+    /**
+     * The CMake generator to use for non-IDE toolchains, such as "Ninja" or "Ninja Multi-Config".
+     * If unset, a Makefile generator matching the make found on the path is used.
+     * Multi-config generators generate every configuration with a single configure per target machine.
+     */
+    public Property<String> getGenerator() {
+        return generator;
+    }
+
+    /**
+     * The cmake executable to use, defaulting to the CMAKE_EXECUTABLE environment variable, or cmake on the path.
+     */
+    public Property<String> getCmakeExecutable() {
+        return cmakeExecutable;
+    }
+
+    /**
+     * The make executable to use with Makefile generators, defaulting to the MAKE_EXECUTABLE environment variable, or make on the path.
+     */
+    public Property<String> getMakeExecutable() {
+        return makeExecutable;
+    }
+
+    /**
+     * The ninja executable to use with Ninja generators, defaulting to the NINJA_EXECUTABLE environment variable, or ninja on the path.
+     */
+    public Property<String> getNinjaExecutable() {
+        return ninjaExecutable;
+    }
+
+    /**
+     * Whether compiles should go through a compiler launcher such as ccache or sccache, so that objects are reused
+     * across build directories, build types and target machines that compile the same sources.
+     */
+    public Property<Boolean> getUseCompilerLauncher() {
+        return useCompilerLauncher;
+    }
+
+    /**
+     * The compiler launcher to use when {@link #getUseCompilerLauncher()} is enabled, defaulting to sccache or
+     * ccache found on the path. Hit and miss counts are reported after each build with ccache 4+ or sccache.
+     */
+    public Property<String> getCompilerLauncher() {
+        return compilerLauncher;
+    }
+
+    /**
+     * The cache directory given to the compiler launcher, defaulting to one shared by every project under the Gradle user home.
+     */
+    public DirectoryProperty getCompilerLauncherCacheDirectory() {
+        return compilerLauncherCacheDirectory;
+    }
+
+    /**
+     * The size the compiler launcher's cache is limited to, in the launcher's own format, such as "5G".
+     */
+    public Property<String> getCompilerLauncherMaxSize() {
+        return compilerLauncherMaxSize;
+    }
+
+    /**
+     * Whether Makefile builds should time each compile and link through a launcher script, for the build reports of
+     * the {@code cmakeBuildReport} tasks. Ninja builds always record their timings, and the script needs a POSIX
+     * shell, so this has no effect for Ninja builds or on Windows.
+     */
+    public Property<Boolean> getRecordBuildTimings() {
+        return recordBuildTimings;
+    }
+
+    /**
+     * Whether optimized variants should be built with profile-guided optimization, for target machines built with GCC
+     * (11 or newer) or Clang. Each such target machine gets an instrumented build, a
+     * {@link me.walkerknapp.usecmakelibrary.tasks.CMakeProfileTrainTask} that must be configured to run a training
+     * workload against it, and a task merging the profiles the training wrote. The optimized build compiled with those
+     * profiles then backs the optimized variants, and is only built again when the profiles or the sources change.
+     */
+    public Property<Boolean> getProfileGuidedOptimization() {
+        return profileGuidedOptimization;
+    }
+
+    /**
+     * The llvm-profdata tool that merges Clang's raw profiles when {@link #getProfileGuidedOptimization()} is enabled.
+     */
+    public Property<String> getLlvmProfdataExecutable() {
+        return llvmProfdataExecutable;
+    }
+
+    /**
+     * Whether optimized variants should also publish static libraries built with link-time optimization, for target
+     * machines built with GCC or Clang. These are extra variants with a capability of their own, named by
+     * {@link CMakeLibrary#LINK_TIME_OPTIMIZED_CAPABILITY_SUFFIX}, so only consumers requiring that capability select
+     * them, and are built in build directories of their own.
+     */
+    public Property<Boolean> getLinkTimeOptimization() {
+        return linkTimeOptimization;
+    }
+
+    /**
+     * Whether shared libraries should be published stripped, with their debug info split out into separate variants
+     * with the {@link CMakeLibrary#DEBUG_INFO_USAGE} usage, for target machines built with GCC or Clang other than
+     * macOS. The installed libraries keep their debug info.
+     */
+    public Property<Boolean> getSplitDebugInfo() {
+        return splitDebugInfo;
+    }
+
+    /**
+     * Whether the CMake configure runs for each target machine should happen concurrently, rather than one after another.
+     */
+    public Property<Boolean> getParallelConfigure() {
+        return parallelConfigure;
+    }
+
+    /**
+     * The maximum number of CMake configure runs to execute at once when {@link #getParallelConfigure()} is enabled.
+     */
+    public Property<Integer> getMaxParallelConfigures() {
+        return maxParallelConfigures;
+    }
+
+    /**
+     * Whether a build directory whose configure command, toolchain and CMake inputs are unchanged since its
+     * last configure should be reused as-is, instead of running cmake again.
+     */
+    public Property<Boolean> getReuseConfiguration() {
+        return reuseConfiguration;
+    }
+
+    /**
+     * Names of the installable library targets to publish, or regular expressions matching them when prefixed with
+     * {@code regex:}. If empty, every installable library target is published. Only the targets of the install
+     * components holding the published targets are built and installed, which needs CMake 3.22 or newer; older
+     * versions build and install every installable target.
+     */
+    public SetProperty<String> getExportedTargets() {
+        return exportedTargets;
+    }
+
+    /**
+     * How files are placed in the install prefix. {@link CMakeInstallTask.InstallMode#LINK} hard links them to the
+     * build tree instead of copying, which needs CMake 3.22 or newer to have any effect.
+     */
+    public Property<CMakeInstallTask.InstallMode> getInstallMode() {
+        return installMode;
+    }
+
+    /**
+     * Whether builds should be configured and built in a cache under the Gradle user home, shared by every project and
+     * checkout on the machine, instead of under this project's build directory. Builds are keyed by the project, the
+     * toolchain and the CMake arguments, and each checkout's sources are synced into the build's own copy of them before
+     * it is used, so a build only recompiles what changed since whichever checkout built it last.
+     */
+    public Property<Boolean> getSharedBuildDirectories() {
+        return sharedBuildDirectories;
+    }
+
+    /**
+     * The size in bytes the shared build cache is trimmed to, evicting the least recently used builds first.
+     */
+    public Property<Long> getSharedBuildCacheMaxSize() {
+        return sharedBuildCacheMaxSize;
+    }
+
+    /**
+     * How long an unused entry is kept in the shared build cache.
+     */
+    public Property<Duration> getSharedBuildCacheMaxAge() {
+        return sharedBuildCacheMaxAge;
+    }
+
+    /**
+     * Whether variants should be resolved as prebuilt binaries from the project's repositories, as published by this
+     * plugin, rather than built from source. Variants that can't be resolved are still built.
+     */
+    public Property<Boolean> getPreferBinaries() {
+        return preferBinaries;
+    }
+
+    /**
+     * The coordinates to resolve prebuilt binaries from when {@link #getPreferBinaries()} is enabled, defaulting to
+     * the project's own group, name and version.
+     */
+    public Property<String> getBinaryCoordinates() {
+        return binaryCoordinates;
+    }
+
+    /**
+     * Whether each build should only be generated once one of its variants is resolved or built, rather than
+     * generating every build while the project is evaluated.
+     */
+    public Property<Boolean> getLazyConfiguration() {
+        return lazyConfiguration;
+    }
+
+    /**
+     * The linkages to expose variants for when {@link #getLazyConfiguration()} is enabled. As the build has not been
+     * generated when variants are created, these can't be discovered from the project's targets.
+     */
+    public SetProperty<Linkage> getLinkages() {
+        return linkages;
+    }
 }
@@ -4,13 +4,33 @@ import me.walkerknapp.cfi.CFIQuery;
 import me.walkerknapp.cfi.CMakeInstance;
 import me.walkerknapp.cfi.CMakeProject;
 import me.walkerknapp.cfi.structs.*;
+import me.walkerknapp.usecmakelibrary.services.CMakeJobService;
+import me.walkerknapp.usecmakelibrary.services.CMakeModelService;
+import me.walkerknapp.usecmakelibrary.services.CMakeTraceService;
+import me.walkerknapp.usecmakelibrary.tasks.CMakeBuildReportTask;
 import me.walkerknapp.usecmakelibrary.tasks.CMakeBuildTask;
 import me.walkerknapp.usecmakelibrary.tasks.CMakeInstallTask;
+import me.walkerknapp.usecmakelibrary.tasks.CMakeProfileMergeTask;
+import me.walkerknapp.usecmakelibrary.tasks.CMakeProfileTrainTask;
+import me.walkerknapp.usecmakelibrary.tasks.CMakeSplitDebugInfoTask;
+import me.walkerknapp.usecmakelibrary.util.CMakeArtifact;
+import me.walkerknapp.usecmakelibrary.util.CMakeConfigureCache;
 import me.walkerknapp.usecmakelibrary.util.CMakeGenerator;
+import me.walkerknapp.usecmakelibrary.util.CMakeInstallRules;
+import me.walkerknapp.usecmakelibrary.util.CMakeTargetReply;
+import me.walkerknapp.usecmakelibrary.util.CMakeToolchainFile;
+import me.walkerknapp.usecmakelibrary.util.CompilerLauncher;
+import me.walkerknapp.usecmakelibrary.util.ExportedTargets;
+import me.walkerknapp.usecmakelibrary.util.LinkTimeOptimization;
+import me.walkerknapp.usecmakelibrary.util.ProfileGuidedOptimization;
+import me.walkerknapp.usecmakelibrary.util.SharedBuildCache;
+import me.walkerknapp.usecmakelibrary.util.ToolChainProbe;
 import org.apache.commons.lang3.StringUtils;
+import org.gradle.api.GradleException;
 import org.gradle.api.Named;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
+import org.gradle.api.Task;
 import org.gradle.api.Transformer;
 import org.gradle.api.artifacts.Configuration;
 import org.gradle.api.artifacts.PublishArtifact;
@@ -18,7 +38,10 @@ import org.gradle.api.artifacts.type.ArtifactTypeDefinition;
 import org.gradle.api.attributes.Attribute;
 import org.gradle.api.attributes.AttributeContainer;
 import org.gradle.api.attributes.Usage;
+import org.gradle.api.component.AdhocComponentWithVariants;
+import org.gradle.api.component.SoftwareComponentFactory;
 import org.gradle.api.file.Directory;
+import org.gradle.api.file.FileCollection;
 import org.gradle.api.internal.artifacts.ArtifactAttributes;
 import org.gradle.api.internal.attributes.ImmutableAttributesFactory;
 import org.gradle.api.internal.provider.AbstractMinimalProvider;
@@ -27,9 +50,14 @@ import org.gradle.api.internal.provider.ProviderInternal;
 import org.gradle.api.internal.provider.ValueSanitizer;
 import org.gradle.api.internal.tasks.DefaultTaskDependency;
 import org.gradle.api.internal.tasks.TaskDependencyResolveContext;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
 import org.gradle.api.provider.Provider;
+import org.gradle.api.publish.PublishingExtension;
+import org.gradle.api.publish.maven.MavenPublication;
 import org.gradle.api.tasks.TaskDependency;
 import org.gradle.api.tasks.TaskProvider;
+import org.gradle.api.tasks.bundling.Zip;
 import org.gradle.internal.DisplayName;
 import org.gradle.language.cpp.CppPlatform;
 import org.gradle.language.cpp.internal.DefaultCppPlatform;
@@ -39,7 +67,9 @@ import org.gradle.language.nativeplatform.internal.toolchains.ToolChainSelector;
 import org.gradle.language.plugins.NativeBasePlugin;
 import org.gradle.language.nativeplatform.internal.BuildType;
 import org.gradle.nativeplatform.*;
+import org.gradle.nativeplatform.platform.NativePlatform;
 import org.gradle.nativeplatform.toolchain.internal.plugins.StandardToolChainsPlugin;
+import org.gradle.process.ExecOperations;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
@@ -49,21 +79,58 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.gradle.language.cpp.CppBinary.*;
 import static org.gradle.nativeplatform.MachineArchitecture.ARCHITECTURE_ATTRIBUTE;
 import static org.gradle.nativeplatform.OperatingSystemFamily.OPERATING_SYSTEM_ATTRIBUTE;
 
 public class CMakeLibrary implements Plugin<Project> {
+    /**
+     * Marks the static library variants built with link-time optimization, which hold the compiler's intermediate
+     * representation for the link-time optimization of their consumer, rather than machine code.
+     */
+    public static final Attribute<Boolean> LINK_TIME_OPTIMIZED_ATTRIBUTE = Attribute.of("me.walkerknapp.usecmakelibrary.linkTimeOptimized", Boolean.class);
+
+    /**
+     * Appended to the module's name to give the capability of the link-time optimized static library variants. These
+     * are only ever selected by consumers requiring that capability, such as with
+     * {@code requireCapability("group:name-link-time-optimized")}, so other consumers need no rules to avoid them.
+     */
+    public static final String LINK_TIME_OPTIMIZED_CAPABILITY_SUFFIX = "-link-time-optimized";
+
+    /**
+     * The usage of the variants holding the debug info split out of shared libraries.
+     */
+    public static final String DEBUG_INFO_USAGE = "native-debug-info";
+
+    // Profile-guided and link-time optimization only make sense for optimized code
+    private static final String OPTIMIZED_CONFIGURATION = "RELEASE";
+
+    private static final Logger LOGGER = Logging.getLogger(CMakeLibrary.class);
+
+    private static final List<String> HEADER_PATTERNS = List.of("**/*.h", "**/*.hh", "**/*.hpp", "**/*.hxx", "**/*.inc");
+
     private final ImmutableAttributesFactory attributesFactory;
     private final ToolChainSelector toolChainSelector;
+    private final SoftwareComponentFactory softwareComponentFactory;
+    private final ExecOperations execOperations;
 
     @Inject
-    public CMakeLibrary(ToolChainSelector toolChainSelector, ImmutableAttributesFactory attributesFactory) {
+    public CMakeLibrary(ToolChainSelector toolChainSelector, ImmutableAttributesFactory attributesFactory, SoftwareComponentFactory softwareComponentFactory,
+                        ExecOperations execOperations) {
         this.toolChainSelector = toolChainSelector;
         this.attributesFactory = attributesFactory;
+        this.softwareComponentFactory = softwareComponentFactory;
+        this.execOperations = execOperations;
     }
 
     public static String createDimensionSuffix(Named dimensionValue, Collection<?> multivalueProperty) {
@@ -89,209 +156,1111 @@ public class CMakeLibrary implements Plugin<Project> {
         return targetMachines.stream().map(TargetMachine::getArchitecture).collect(Collectors.toSet());
     }
 
-    private static void addCommonAttributes(BuildType buildType, TargetMachine targetMachine, AttributeContainer runtimeAttributes) {
+    static void addCommonAttributes(BuildType buildType, TargetMachine targetMachine, AttributeContainer runtimeAttributes) {
         runtimeAttributes.attribute(DEBUGGABLE_ATTRIBUTE, buildType.isDebuggable());
         runtimeAttributes.attribute(OPTIMIZED_ATTRIBUTE, buildType.isOptimized());
         runtimeAttributes.attribute(ARCHITECTURE_ATTRIBUTE, targetMachine.getArchitecture());
         runtimeAttributes.attribute(OPERATING_SYSTEM_ATTRIBUTE, targetMachine.getOperatingSystemFamily());
     }
 
+    private static String machineName(TargetMachine targetMachine) {
+        return targetMachine.getOperatingSystemFamily().getName() + "-" + targetMachine.getArchitecture().getName();
+    }
+
+    private static String createVariantName(String buildTypeName, TargetMachine targetMachine, Collection<TargetMachine> targetMachines) {
+        List<String> variantNameToken = new ArrayList<>();
+        variantNameToken.add(buildTypeName.toLowerCase());
+        variantNameToken.add(createDimensionSuffix(targetMachine.getOperatingSystemFamily(), targetMachinesToOperatingSystems(targetMachines)));
+        variantNameToken.add(createDimensionSuffix(targetMachine.getArchitecture(), targetMachinesToArchitectures(targetMachines)));
+
+        return StringUtils.uncapitalize(String.join("", variantNameToken));
+    }
+
+    private static Map<BuildType, LazyBuild> layoutTargetMachine(Project project, ExecOperations execOperations, CMakeExtension cMakeExtension, CMakeProject cMakeProject,
+                                                                 Path sourcePath, @Nullable SharedSources sharedSources,
+                                                                 CMakeModelService modelService, CMakeTraceService traceService, TargetMachine targetMachine, ToolChainSelector.Result<CppPlatform> result) {
+        Map<BuildType, LazyBuild> builds = new LinkedHashMap<>();
+        // Configures may run on other threads, which must not touch the project
+        Path gradleUserHome = project.getGradle().getGradleUserHomeDir().toPath();
+        String searchPath = project.getProviders().environmentVariable("PATH").getOrNull();
+        ExportedTargets exportedTargets = ExportedTargets.of(cMakeExtension.getExportedTargets().get());
+
+        // Build types that resolve to the same CMake configuration share a single build, as the toolchain and arguments
+        // are the same for every build type of a target machine. Multi-config generators go further, and generate
+        // every configuration into one build directory.
+        boolean multiConfig = CMakeGenerator.isMultiConfig(cMakeExtension, result.getToolChain());
+        Map<String, LazyDirectory> directories = new HashMap<>();
+        Map<String, LazyBuild> buildsByConfiguration = new HashMap<>();
+
+        // TODO: On single-configuration generators (makefile generators, etc), codeModel.configurations
+        //  will *not* have all the possible configurations, it only has the current configuration, so each
+        //  configuration gets its own build directory. Multi-config generators (Ninja Multi-Config, Visual Studio)
+        //  report every configuration they generated, so there the configuration is checked against that list.
+        for (BuildType buildType : BuildType.DEFAULT_BUILD_TYPES) {
+            // TODO: No matter what the build type we're going to present to gradle is,
+            //  we're going to have cmake build a release binary. This is because cmake
+            //  treats "debug" binaries in a way that is unsafe for the gradle "debug"
+            //  linker to consume. Gradle only ever links against the release version
+            //  of the C Run-time Library, but cmake debug binaries need to be linked
+            //  against the release C Run-time Library always.
+            //  See https://stackoverflow.com/a/42801504.
+            String buildTypeString = "RELEASE";
+            // String buildTypeString = buildType.getName();
+
+            builds.put(buildType, buildsByConfiguration.computeIfAbsent(buildTypeString, config -> {
+                String directoryName = multiConfig ? "multi" : config.toLowerCase();
+                LazyDirectory directory = directories.computeIfAbsent(directoryName, name -> {
+                    Path configBuildPath;
+                    Path configSourcePath;
+                    if (sharedSources != null) {
+                        // Shared build directories configure from their own copy of the sources, synced from this checkout
+                        configBuildPath = sharedSources.cache.buildDirectory(sharedBuildIdentity(project, cMakeExtension, name, targetMachine, result));
+                        configSourcePath = SharedBuildCache.sourceDirectory(configBuildPath);
+                    } else {
+                        configBuildPath = project.getLayout().getBuildDirectory().get().getAsFile().toPath()
+                                .resolve("cmake").resolve(name + "-" + machineName(targetMachine));
+                        configSourcePath = sourcePath;
+                        try {
+                            Files.createDirectories(configBuildPath);
+                        } catch (IOException e) {
+                            LOGGER.warn("Could not create build directory {}", configBuildPath, e);
+                        }
+                    }
+                    CMakeProject configProject = sharedSources != null ? new CMakeProject(configSourcePath) : cMakeProject;
+
+                    String displayName = name + "-" + machineName(targetMachine);
+                    return new LazyDirectory(displayName, configSourcePath, configBuildPath, sharedSources, configurationInputs(project),
+                            () -> CMakeGenerator.createConfigureCommand(execOperations, gradleUserHome, searchPath, cMakeExtension, configSourcePath, config,
+                                    ((DefaultCppPlatform) result.getTargetPlatform()).getNativePlatform(),
+                                    result.getToolChain(), List.of()),
+                            command -> configureDirectory(execOperations, cMakeExtension, configProject, modelService, traceService, displayName,
+                                    configSourcePath, configBuildPath, sharedSources, command));
+                });
+                return new LazyBuild(directory, config, modelService, traceService, exportedTargets);
+            }));
+        }
+
+        if (cMakeExtension.getProfileGuidedOptimization().get()) {
+            Optional<ProfileGuidedOptimization.Compiler> compiler = ProfileGuidedOptimization.compilerOf(result.getToolChain());
+            if (compiler.isEmpty()) {
+                LOGGER.warn("Profile-guided optimization is not supported with {}, so {} is built without it.",
+                        result.getToolChain().getDisplayName(), machineName(targetMachine));
+                return builds;
+            }
+
+            Path profilesPath = project.getLayout().getBuildDirectory().get().getAsFile().toPath().resolve("cmake-profiles").resolve(machineName(targetMachine));
+            Path rawProfilePath = profilesPath.resolve("raw");
+            Path profilePath = profilesPath.resolve("merged");
+
+            LazyDirectory instrumentedDirectory = localDirectory(project, execOperations, cMakeExtension, cMakeProject, sourcePath, modelService, traceService,
+                    targetMachine, result, "pgo-instrumented", buildPath -> {
+                        List<String> flags = ProfileGuidedOptimization.generateFlags(compiler.get(), rawProfilePath, buildPath);
+                        return ProfileGuidedOptimization.projectInclude(buildPath, flags, flags);
+                    });
+            LazyDirectory optimizedDirectory = localDirectory(project, execOperations, cMakeExtension, cMakeProject, sourcePath, modelService, traceService,
+                    targetMachine, result, "pgo-optimized", buildPath -> ProfileGuidedOptimization.projectInclude(buildPath,
+                            ProfileGuidedOptimization.useFlags(compiler.get(), profilePath, buildPath), List.of()));
+
+            LazyBuild instrumented = new LazyBuild(instrumentedDirectory, OPTIMIZED_CONFIGURATION, "Instrumented", null,
+                    modelService, traceService, exportedTargets);
+            LazyBuild optimized = new LazyBuild(optimizedDirectory, OPTIMIZED_CONFIGURATION, "Optimized",
+                    new Profile(instrumented, compiler.get(), rawProfilePath, profilePath),
+                    modelService, traceService, exportedTargets);
+
+            // Only optimized variants are built with the profiles, as debug variants should stay predictable to step through
+            for (BuildType buildType : BuildType.DEFAULT_BUILD_TYPES) {
+                if (buildType.isOptimized()) {
+                    builds.put(buildType, optimized);
+                }
+            }
+        }
+
+        return builds;
+    }
+
+    /**
+     * The link-time optimized builds of a target machine, for each optimized build type, which back the static
+     * libraries published for consumers doing link-time optimization of their own.
+     */
+    private static Map<BuildType, LazyBuild> layoutLinkTimeOptimization(Project project, ExecOperations execOperations, CMakeExtension cMakeExtension, CMakeProject cMakeProject,
+                                                                        Path sourcePath, CMakeModelService modelService, CMakeTraceService traceService,
+                                                                        TargetMachine targetMachine, ToolChainSelector.Result<CppPlatform> result) {
+        Map<BuildType, LazyBuild> builds = new LinkedHashMap<>();
+        if (!cMakeExtension.getLinkTimeOptimization().get()) {
+            return builds;
+        }
+        if (!LinkTimeOptimization.isSupported(result.getToolChain())) {
+            LOGGER.warn("Link-time optimization is not supported with {}, so {} has no link-time optimized variants.",
+                    result.getToolChain().getDisplayName(), machineName(targetMachine));
+            return builds;
+        }
+
+        ExportedTargets exportedTargets = ExportedTargets.of(cMakeExtension.getExportedTargets().get());
+        LazyDirectory directory = localDirectory(project, execOperations, cMakeExtension, cMakeProject, sourcePath, modelService, traceService,
+                targetMachine, result, "lto", buildPath -> LinkTimeOptimization.configureArguments(result.getToolChain(),
+                        result.getPlatformToolProvider(), buildPath));
+        LazyBuild build = new LazyBuild(directory, OPTIMIZED_CONFIGURATION, "Lto", null,
+                modelService, traceService, exportedTargets);
+
+        for (BuildType buildType : BuildType.DEFAULT_BUILD_TYPES) {
+            if (buildType.isOptimized()) {
+                builds.put(buildType, build);
+            }
+        }
+        return builds;
+    }
+
+    /**
+     * A build directory of a variant with extra optimizations, configured with the arguments {@code extraArguments}
+     * gives for its path. These are configured with files of this project, such as its profiles, so they are never
+     * kept in the shared build cache.
+     */
+    private static LazyDirectory localDirectory(Project project, ExecOperations execOperations, CMakeExtension cMakeExtension, CMakeProject cMakeProject, Path sourcePath,
+                                                        CMakeModelService modelService, CMakeTraceService traceService, TargetMachine targetMachine,
+                                                        ToolChainSelector.Result<CppPlatform> result, String name,
+                                                        Function<Path, List<String>> extraArguments) {
+        String displayName = name + "-" + machineName(targetMachine);
+        Path gradleUserHome = project.getGradle().getGradleUserHomeDir().toPath();
+        String searchPath = project.getProviders().environmentVariable("PATH").getOrNull();
+        Path buildPath = project.getLayout().getBuildDirectory().get().getAsFile().toPath().resolve("cmake").resolve(displayName);
+        try {
+            Files.createDirectories(buildPath);
+        } catch (IOException e) {
+            LOGGER.warn("Could not create build directory {}", buildPath, e);
+        }
+
+        return new LazyDirectory(displayName, sourcePath, buildPath, null, configurationInputs(project),
+                () -> CMakeGenerator.createConfigureCommand(execOperations, gradleUserHome, searchPath, cMakeExtension, sourcePath, OPTIMIZED_CONFIGURATION,
+                        ((DefaultCppPlatform) result.getTargetPlatform()).getNativePlatform(),
+                        result.getToolChain(), extraArguments.apply(buildPath)),
+                command -> configureDirectory(execOperations, cMakeExtension, cMakeProject, modelService, traceService, displayName,
+                        sourcePath, buildPath, null, command));
+    }
+
+    /**
+     * Everything that identifies a configure in the shared build cache, short of the toolchain binaries themselves.
+     * Those are covered by the configure fingerprint, which reconfigures the shared directory in place if they change.
+     * The sources are identified by the project building them rather than by their contents, so that the same build
+     * directory is built incrementally as they change.
+     */
+    private static List<String> sharedBuildIdentity(Project project, CMakeExtension cMakeExtension, String directoryName,
+                                                    TargetMachine targetMachine, ToolChainSelector.Result<CppPlatform> result) {
+        List<String> arguments = new ArrayList<>();
+        cMakeExtension.getArguments().execute(arguments);
+
+        List<String> identity = new ArrayList<>(List.of(
+                project.getRootProject().getName(),
+                project.getPath(),
+                directoryName,
+                machineName(targetMachine),
+                result.getToolChain().getName(),
+                result.getToolChain().getDisplayName(),
+                cMakeExtension.getGenerator().getOrElse(""),
+                cMakeExtension.getCmakeExecutable().get(),
+                cMakeExtension.getMakeExecutable().get(),
+                cMakeExtension.getNinjaExecutable().get()));
+        identity.addAll(arguments);
+        return identity;
+    }
+
+    private static void configureBuilds(CMakeExtension cMakeExtension, Collection<LazyBuild> builds) {
+        int parallelism = cMakeExtension.getParallelConfigure().get() ? Math.max(1, cMakeExtension.getMaxParallelConfigures().get()) : 1;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, builds.size())), runnable -> {
+            Thread thread = new Thread(runnable, "cmake-configure-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            Map<LazyBuild, CompletableFuture<ConfiguredBuild>> futures = new LinkedHashMap<>();
+            for (LazyBuild build : builds) {
+                futures.put(build, CompletableFuture.supplyAsync(build::get, executor));
+            }
+
+            // Wait on every run before reporting, so that all failing builds are reported together
+            Map<LazyBuild, Throwable> failures = new LinkedHashMap<>();
+            futures.forEach((build, future) -> {
+                try {
+                    future.join();
+                } catch (CompletionException e) {
+                    failures.put(build, e.getCause() != null ? e.getCause() : e);
+                }
+            });
+
+            if (!failures.isEmpty()) {
+                StringBuilder message = new StringBuilder("CMake configuration failed for " + failures.size() + " build(s):");
+                failures.forEach((build, failure) -> message.append(System.lineSeparator())
+                        .append("  - ").append(build.buildPath.getFileName()).append(" (").append(build.buildType).append("): ").append(failure.getMessage()));
+
+                GradleException exception = new GradleException(message.toString());
+                failures.values().forEach(exception::addSuppressed);
+                throw exception;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static GeneratedDirectory configureDirectory(ExecOperations execOperations, CMakeExtension cMakeExtension, CMakeProject cMakeProject,
+                                                         CMakeModelService modelService, CMakeTraceService traceService, String name,
+                                                         Path sourcePath, Path buildPath, @Nullable SharedSources sharedSources,
+                                                         CMakeGenerator.ConfigureCommand command) {
+        if (sharedSources != null) {
+            // Other projects and checkouts may be configuring or building this directory at the same time
+            SharedBuildCache.Lock lock;
+            try (CMakeTraceService.Span span = traceService.start("wait for shared directory", name)) {
+                lock = SharedBuildCache.lock(buildPath);
+            }
+            try (lock) {
+                try (CMakeTraceService.Span span = traceService.start("sync sources", name)) {
+                    SharedBuildCache.syncSources(execOperations, sharedSources.checkoutPath, sharedSources.excluded, buildPath);
+                }
+                return configureDirectory(execOperations, cMakeExtension, cMakeProject, modelService, traceService, name, sourcePath, buildPath, null, command);
+            }
+        }
+
+        try (CMakeTraceService.Span span = traceService.start("configure", name)) {
+            GeneratedDirectory generated = configureDirectory(execOperations, cMakeExtension, cMakeProject, modelService, traceService, name,
+                    sourcePath, buildPath, command);
+            span.arg("reused", generated.reused);
+            return generated;
+        }
+    }
+
+    private static GeneratedDirectory configureDirectory(ExecOperations execOperations, CMakeExtension cMakeExtension, CMakeProject cMakeProject,
+                                                         CMakeModelService modelService, CMakeTraceService traceService, String name,
+                                                         Path sourcePath, Path buildPath, CMakeGenerator.ConfigureCommand command) {
+        CMakeInstance instance = new CMakeInstance(cMakeProject, buildPath);
+
+        // If nothing relevant changed since this directory was last configured, reuse its reply without running cmake,
+        // and without even reading it if an earlier build in this daemon already did
+        Optional<CodeModel> cachedCodeModel = cMakeExtension.getReuseConfiguration().get()
+                ? CMakeConfigureCache.readIfUpToDate(buildPath, sourcePath, command, codeModelFile -> modelService.getCodeModel(buildPath, () -> {
+                    try (CMakeTraceService.Span span = traceService.start("read codemodel", name)) {
+                        return instance.readReplyObject(CodeModel.class, codeModelFile).join();
+                    }
+                }))
+                : Optional.empty();
+
+        CodeModel codeModel;
+        if (cachedCodeModel.isPresent()) {
+            codeModel = cachedCodeModel.get();
+        } else {
+            CMakeConfigureCache.invalidate(buildPath);
+
+            // These futures will spin until the next time the instance is generated
+            CompletableFuture<CodeModel> codeModelFuture = instance.queueRequest(CFIQuery.CODE_MODEL);
+            CompletableFuture<CMakeFiles> cmakeFilesFuture = instance.queueRequest(CFIQuery.CMAKE_FILES);
+
+            // A fresh build directory can skip compiler detection if another one was configured with the same toolchain
+            if (command.getToolchainFile() != null) {
+                CMakeToolchainFile.seedCompilerDetection(command.getToolchainFile(), command.getTools(), buildPath);
+            }
+
+            try (CMakeTraceService.Span span = traceService.start("cmake configure", name)) {
+                CMakeGenerator.generateCmakeFiles(execOperations, buildPath, command);
+            }
+
+            // These futures will now complete when the generation is finished
+            try (CMakeTraceService.Span span = traceService.start("wait for codemodel", name)) {
+                codeModel = codeModelFuture.join();
+            }
+            modelService.putCodeModel(buildPath, codeModel);
+            CMakeConfigureCache.write(buildPath, sourcePath, command, cmakeFilesFuture.join());
+
+            if (command.getToolchainFile() != null) {
+                CMakeToolchainFile.saveCompilerDetection(command.getToolchainFile(), command.getTools(), buildPath);
+            }
+        }
+
+        return new GeneratedDirectory(instance, buildPath, codeModel, cachedCodeModel.isPresent());
+    }
+
+    /**
+     * Declares files as inputs of the project's configuration, so that a configuration cache entry holding what was
+     * read from them is discarded once they change.
+     */
+    private static Consumer<Path> configurationInputs(Project project) {
+        return file -> project.getProviders().fileContents(project.getLayout().getProjectDirectory().file(file.toAbsolutePath().toString()))
+                .getAsBytes()
+                .getOrNull();
+    }
+
+    private static Provider<List<PublishArtifact>> artifactsOf(Project project, LazyBuild build, Function<LazyBuild, List<File>> files,
+                                                               TaskProvider<?> builtBy, String classifierPrefix) {
+        // Classifiers keep the artifacts of every variant distinct once they are published together
+        return project.provider(() -> files.apply(build).stream()
+                .map(file -> (PublishArtifact) new CMakeArtifact(file, new DefaultTaskDependency().add(builtBy),
+                        classifierPrefix + "-" + file.getName().replace('.', '-')))
+                .collect(Collectors.toList()));
+    }
+
+    private static Provider<List<PublishArtifact>> artifactsOf(Project project, FileCollection files) {
+        return project.provider(() -> files.getFiles().stream()
+                .map(file -> (PublishArtifact) new CMakeArtifact(file, files.getBuildDependencies(), null))
+                .collect(Collectors.toList()));
+    }
+
+    private static Configuration createElements(Project project, String name, String usage, BuildType buildType, TargetMachine targetMachine,
+                                                @Nullable Linkage linkage) {
+        Configuration elements = project.getConfigurations().create(StringUtils.uncapitalize(name));
+        elements.setCanBeResolved(false);
+        elements.setCanBeConsumed(true);
+        elements.getAttributes().attribute(Usage.USAGE_ATTRIBUTE, project.getObjects().named(Usage.class, usage));
+        addCommonAttributes(buildType, targetMachine, elements.getAttributes());
+        if (linkage != null) {
+            elements.getAttributes().attribute(LINKAGE_ATTRIBUTE, linkage);
+        }
+        return elements;
+    }
+
+    private static Provider<List<Object>> sourcesOf(Project project, LazyBuild build) {
+        return project.provider(() -> {
+            List<Object> sources = new ArrayList<>(build.getSourceFiles());
+            for (File includeDirectory : build.getIncludeDirectories()) {
+                sources.add(project.fileTree(includeDirectory, tree -> tree.include(HEADER_PATTERNS)));
+            }
+            return sources;
+        });
+    }
+
     @Override
     public void apply(Project project) {
         project.getPluginManager().apply(NativeBasePlugin.class);
         project.getPluginManager().apply(StandardToolChainsPlugin.class);
 
-        CMakeExtension cMakeExtension = project.getExtensions().create("cmake", CMakeExtension.class, project.getObjects());
+        CMakeExtension cMakeExtension = project.getExtensions().create("cmake", CMakeExtension.class, project.getObjects(), project.getProviders(), project);
 
-        var objectFactory = project.getObjects();
+        // Every CMake build in this Gradle build draws its compile jobs from one budget, sized by --max-workers, and
+        // split between the CMake builds in the task graph, which is ready by the time the service is first used
+        Provider<CMakeJobService> jobService = project.getGradle().getSharedServices().registerIfAbsent(CMakeJobService.NAME, CMakeJobService.class, spec -> {
+            spec.getParameters().getMaxJobs().set(project.getGradle().getStartParameter().getMaxWorkerCount());
+            spec.getParameters().getExpectedBuilds().set(project.provider(() -> (int) project.getGradle().getTaskGraph().getAllTasks().stream()
+                    .filter(CMakeBuildTask.class::isInstance)
+                    .count()));
+        });
+
+        // Phase timings are reported into each project's own build directory
+        Provider<CMakeTraceService> traceServiceProvider = project.getGradle().getSharedServices()
+                .registerIfAbsent(CMakeTraceService.nameFor(project.getPath()), CMakeTraceService.class,
+                        spec -> spec.getParameters().getReportDirectory().set(project.getLayout().getBuildDirectory().dir("reports/cmake")));
+
+        // Parsed codemodels are kept between builds in the same daemon
+        Provider<CMakeModelService> modelServiceProvider = project.getGradle().getSharedServices()
+                .registerIfAbsent(CMakeModelService.NAME, CMakeModelService.class, spec -> { });
 
         project.afterEvaluate(p -> {
+            // With shared build directories, builds configure from a copy of the sources in the shared cache, so that
+            // every checkout configures with the same paths
+            Path sourcePath = project.getRootDir().toPath();
+            SharedSources sharedSources = null;
+            if (cMakeExtension.getSharedBuildDirectories().get()) {
+                SharedBuildCache sharedBuildCache = new SharedBuildCache(project.getGradle().getGradleUserHomeDir().toPath().resolve("caches").resolve("cmake-builds"));
+                sharedBuildCache.cleanupIfDue(cMakeExtension.getSharedBuildCacheMaxSize().get(), cMakeExtension.getSharedBuildCacheMaxAge().get());
+                // The build directories of every project are left out, as they are no part of the CMake sources
+                sharedSources = new SharedSources(sharedBuildCache, sourcePath, project.getRootProject().getAllprojects().stream()
+                        .map(each -> each.getLayout().getBuildDirectory().get().getAsFile().toPath())
+                        .collect(Collectors.toList()));
+            }
+
             CMakeProject cMakeProject = new CMakeProject(project.file(".").toPath());
 
-            // Allocate a space to setup a build for each of our target machines
+            // Check which of our target machines have a toolchain available
+            Map<TargetMachine, ToolChainSelector.Result<CppPlatform>> toolChains = new LinkedHashMap<>();
             for (TargetMachine targetMachine : cMakeExtension.getTargetMachines().get()) {
-
-                // Check if this target machine has a toolchain available
                 ToolChainSelector.Result<CppPlatform> result = toolChainSelector.select(CppPlatform.class, new DefaultCppPlatform(targetMachine));
-                if(!result.getPlatformToolProvider().isAvailable()) {
-                    continue;
+                if (result.getPlatformToolProvider().isAvailable()) {
+                    toolChains.put(targetMachine, result);
                 }
+            }
 
-                // Start with the release build, any other builds will be generated once we can enumerate them
-                Path initialBuildPath = p.getLayout().getBuildDirectory().get().getAsFile().toPath()
-                        .resolve("cmake").resolve("release-" + targetMachine.getOperatingSystemFamily().getName() + "-" + targetMachine.getArchitecture().getName());
-                try {
-                    Files.createDirectories(initialBuildPath);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            // Variants that can be resolved as prebuilt binaries don't need to be built at all, even when no toolchain is available for them
+            Map<TargetMachine, Map<BuildType, PrebuiltVariant>> prebuiltVariants = cMakeExtension.getPreferBinaries().get()
+                    ? PrebuiltVariant.resolveAll(project, cMakeExtension.getBinaryCoordinates().get(), cMakeExtension.getTargetMachines().get())
+                    : new LinkedHashMap<>();
 
-                CMakeInstance initialInstance = new CMakeInstance(cMakeProject, initialBuildPath);
+            // Allocate a space to setup a build for each of our target machines, without generating anything yet
+            Map<TargetMachine, Map<BuildType, LazyBuild>> machineBuilds = new LinkedHashMap<>();
+            Map<TargetMachine, Map<BuildType, LazyBuild>> machineLinkTimeOptimizedBuilds = new LinkedHashMap<>();
+            Path layoutSourcePath = sourcePath;
+            SharedSources layoutSharedSources = sharedSources;
+            CMakeModelService modelService = modelServiceProvider.get();
+            CMakeTraceService traceService = traceServiceProvider.get();
+            toolChains.forEach((targetMachine, result) -> {
+                Map<BuildType, LazyBuild> builds = layoutTargetMachine(project, execOperations, cMakeExtension, cMakeProject, layoutSourcePath, layoutSharedSources, modelService, traceService, targetMachine, result);
+                Map<BuildType, LazyBuild> linkTimeOptimizedBuilds = layoutLinkTimeOptimization(project, execOperations, cMakeExtension, cMakeProject,
+                        layoutSourcePath, modelService, traceService, targetMachine, result);
+                builds.keySet().removeAll(prebuiltVariants.getOrDefault(targetMachine, Map.of()).keySet());
+                linkTimeOptimizedBuilds.keySet().removeAll(prebuiltVariants.getOrDefault(targetMachine, Map.of()).keySet());
+                machineBuilds.put(targetMachine, builds);
+                machineLinkTimeOptimizedBuilds.put(targetMachine, linkTimeOptimizedBuilds);
+            });
 
-                // This future will spin until the next time the instance is generated
-                CompletableFuture<CodeModel> codeModelFuture = initialInstance.queueRequest(CFIQuery.CODE_MODEL);
+            boolean lazyConfiguration = cMakeExtension.getLazyConfiguration().get();
+            if (!lazyConfiguration) {
+                // Generate every build up front, possibly in parallel
+                configureBuilds(cMakeExtension, Stream.concat(machineBuilds.values().stream(), machineLinkTimeOptimizedBuilds.values().stream())
+                        .flatMap(builds -> builds.values().stream())
+                        .flatMap(build -> build.profile != null ? Stream.of(build, build.profile.instrumented) : Stream.of(build))
+                        .distinct()
+                        .collect(Collectors.toList()));
+            }
 
-                CMakeGenerator.generateCmakeFiles(project, cMakeExtension,
-                        initialBuildPath, "RELEASE",
-                        ((DefaultCppPlatform) result.getTargetPlatform()).getNativePlatform(),
-                        result.getToolChain());
-
-                // This future will now complete when the generation is finished
-                CodeModel codeModel = codeModelFuture.join();
-
-                // TODO: Okay, on single-configuration generators (makefile generators, etc), codeModel.configurations
-                //  will *not* have all the possible configurations, it only has the current configurations.
-                //  I am assuming here that most projects will have a debug and release config until I can figure out
-                //  another way to determine the possible configurations for a project.
-                for (BuildType buildType : BuildType.DEFAULT_BUILD_TYPES) {
-                    CMakeInstance configInstance;
-                    boolean needsRegen;
-                    Path configBuildPath;
-                    CodeModel.Configuration configuration =  null;
-
-                    // TODO: No matter what the build type we're going to present to gradle is,
-                    //  we're going to have cmake build a release binary. This is because cmake
-                    //  treats "debug" binaries in a way that is unsafe for the gradle "debug"
-                    //  linker to consume. Gradle only ever links against the release version
-                    //  of the C Run-time Library, but cmake debug binaries need to be linked
-                    //  against the release C Run-time Library always.
-                    //  See https://stackoverflow.com/a/42801504.
-                    String buildTypeString = "RELEASE";
-                    // String buildTypeString = buildType.getName();
-
-                    if (buildType == BuildType.RELEASE) {
-                        configInstance = initialInstance;
-                        needsRegen = false;
-                        configBuildPath = initialBuildPath;
-                        configuration = codeModel.configurations.stream()
-                                .filter(c -> c.name.equalsIgnoreCase(buildType.getName()))
-                                .findAny()
-                                .orElseThrow(() -> new IllegalStateException("Configuration for initial release generator run could not be found."));
-                    } else {
-                        needsRegen = true;
-                        configBuildPath = p.getLayout().getBuildDirectory().get().getAsFile().toPath()
-                                .resolve("cmake").resolve(buildType.getName() + "-" + targetMachine.getOperatingSystemFamily().getName() + "-" + targetMachine.getArchitecture().getName());
-                        configInstance = new CMakeInstance(cMakeProject, configBuildPath);
-                    }
+            // Built variants are published through this component when the project publishes with maven-publish
+            boolean publishing = project.getPluginManager().hasPlugin("maven-publish");
+            AdhocComponentWithVariants component = softwareComponentFactory.adhoc("cmake");
+            project.getComponents().add(component);
 
-                    if (needsRegen) {
-                        try {
-                            Files.createDirectories(configBuildPath);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-
-                        // This future will spin until the next time the instance is generated
-                        CompletableFuture<CodeModel> configCodeModelFuture = configInstance.queueRequest(CFIQuery.CODE_MODEL);
+            // Tasks are tracked per build, so that build types sharing a build directory share them too
+            Map<LazyBuild, TaskProvider<CMakeBuildTask>> buildTasks = new HashMap<>();
+            Map<LazyBuild, TaskProvider<CMakeInstallTask>> installTasks = new HashMap<>();
+            Map<LazyBuild, TaskProvider<Zip>> headerZipTasks = new HashMap<>();
+            Map<LazyBuild, TaskProvider<CMakeBuildReportTask>> buildReportTasks = new HashMap<>();
+            Map<LazyBuild, TaskProvider<CMakeProfileMergeTask>> profileMergeTasks = new HashMap<>();
+            Map<LazyBuild, TaskProvider<CMakeSplitDebugInfoTask>> splitDebugInfoTasks = new HashMap<>();
 
-                        CMakeGenerator.generateCmakeFiles(project, cMakeExtension,
-                                configBuildPath, buildTypeString,
-                                ((DefaultCppPlatform) result.getTargetPlatform()).getNativePlatform(),
-                                result.getToolChain());
+            // Reports on the last build of every variant, without building anything itself
+            TaskProvider<Task> buildReportTask = project.getTasks().register("cmakeBuildReport");
 
-                        CodeModel instanceCodeModel = configCodeModelFuture.join();
+            for (Map.Entry<TargetMachine, Map<BuildType, LazyBuild>> machineBuild : machineBuilds.entrySet()) {
+                TargetMachine targetMachine = machineBuild.getKey();
 
-                        configuration = instanceCodeModel.configurations.stream()
-                                .filter(c -> c.name.equalsIgnoreCase(buildTypeString))
-                                .findAny()
-                                .orElseThrow(() -> new IllegalStateException("Configuration for configuration " + buildTypeString + " generator run could not be found."));
-                    }
+                for (Map.Entry<BuildType, LazyBuild> typeBuild : machineBuild.getValue().entrySet()) {
+                    BuildType buildType = typeBuild.getKey();
+                    LazyBuild build = typeBuild.getValue();
 
                     // Now, we can start to generate the model to expose to gradle based on this information
-                    List<String> variantNameToken = new ArrayList<>();
-                    variantNameToken.add(buildType.getName());
-                    variantNameToken.add(createDimensionSuffix(targetMachine.getOperatingSystemFamily(), targetMachinesToOperatingSystems(cMakeExtension.getTargetMachines().get())));
-                    variantNameToken.add(createDimensionSuffix(targetMachine.getArchitecture(), targetMachinesToArchitectures(cMakeExtension.getTargetMachines().get())));
+                    String variantName = createVariantName(buildType.getName(), targetMachine, cMakeExtension.getTargetMachines().get());
+                    String buildVariantName = createVariantName(build.buildType, targetMachine, cMakeExtension.getTargetMachines().get()) + build.variantSuffix;
 
-                    String variantName = StringUtils.uncapitalize(String.join("", variantNameToken));
+                    // Optimized builds of profile-guided optimization are compiled with the profiles of their instrumented build
+                    TaskProvider<CMakeProfileMergeTask> profileMergeTask = build.profile == null ? null : profileMergeTasks.computeIfAbsent(build, b -> {
+                        LazyBuild instrumented = b.profile.instrumented;
+                        String instrumentedVariantName = createVariantName(instrumented.buildType, targetMachine, cMakeExtension.getTargetMachines().get()) + instrumented.variantSuffix;
+                        String trainingName = StringUtils.capitalize(createVariantName(b.buildType, targetMachine, cMakeExtension.getTargetMachines().get()));
 
-                    TaskProvider<CMakeBuildTask> buildTask = project.getTasks().register("cmakeBuild" + StringUtils.capitalize(variantName), CMakeBuildTask.class, task -> {
-                        task.setBuildType(buildTypeString);
-                        task.getCmakeFiles().set(project.file(configBuildPath));
-                    });
+                        TaskProvider<CMakeBuildTask> instrumentedBuildTask = buildTasks.computeIfAbsent(instrumented, i ->
+                                registerBuildTask(project, cMakeExtension, i, instrumentedVariantName, null, jobService, traceServiceProvider));
+                        TaskProvider<CMakeInstallTask> instrumentedInstallTask = installTasks.computeIfAbsent(instrumented, i ->
+                                registerInstallTask(project, cMakeExtension, i, instrumentedVariantName, instrumentedBuildTask, traceServiceProvider));
 
-                    TaskProvider<CMakeInstallTask> installTask = project.getTasks().register("cmakeInstall" + StringUtils.capitalize(variantName), CMakeInstallTask.class, task -> {
-                        task.setBuildType(buildTypeString);
-                        task.getCmakeFiles().set(project.file(configBuildPath));
-                        task.dependsOn(buildTask);
+                        TaskProvider<CMakeProfileTrainTask> trainTask = project.getTasks().register("cmakeProfileTrain" + trainingName, CMakeProfileTrainTask.class, task -> {
+                            task.getInstallDirectory().set(instrumentedInstallTask.flatMap(CMakeInstallTask::getInstallDirectory));
+                            task.getProfileDirectory().set(b.profile.rawProfilePath.toFile());
+                            task.dependsOn(instrumentedInstallTask);
+                        });
+
+                        return project.getTasks().register("cmakeProfileMerge" + trainingName, CMakeProfileMergeTask.class, task -> {
+                            task.getCompiler().set(b.profile.compiler);
+                            task.getProfdataExecutable().set(cMakeExtension.getLlvmProfdataExecutable());
+                            task.getRawProfileDirectory().set(trainTask.flatMap(CMakeProfileTrainTask::getProfileDirectory));
+                            task.getProfileDirectory().set(b.profile.profilePath.toFile());
+                        });
                     });
 
-                    // TODO: Right now, this will add *all* installable targets from this config
-                    //  Is this right? Should there be more granularity? How could that be implemented?
-                    Collection<Target> installableTargets = configuration.targets.stream()
-                            .map(t -> configInstance.readReplyObject(Target.class, t.jsonFile))
-                            .map(CompletableFuture::join)
-                            .filter(t -> t.install != null)
-                            .collect(Collectors.toList());
+                    TaskProvider<CMakeBuildTask> buildTask = buildTasks.computeIfAbsent(build, b ->
+                            registerBuildTask(project, cMakeExtension, b, buildVariantName, profileMergeTask, jobService, traceServiceProvider));
 
-                    // Collect shared libraries
-                    Collection<Target> sharedLibraryTargets = installableTargets.stream()
-                            .filter(t -> t.type.equals("SHARED_LIBRARY"))
-                            .collect(Collectors.toList());
+                    buildReportTasks.computeIfAbsent(build, b -> {
+                        TaskProvider<CMakeBuildReportTask> reportTask = project.getTasks().register("cmakeBuildReport" + StringUtils.capitalize(buildVariantName), CMakeBuildReportTask.class, task -> {
+                            task.getCmakeFiles().set(project.file(b.buildPath));
+                            task.getConfiguration().set(project.provider(b::getConfigurationName));
+                            task.getTargetReplies().set(project.provider(b::getTargetReplyFiles));
+                            task.getReportFile().set(project.getLayout().getBuildDirectory().file("reports/cmake/build-" + buildVariantName + ".txt"));
+                            task.mustRunAfter(buildTask);
+                        });
+                        buildReportTask.configure(task -> task.dependsOn(reportTask));
+                        return reportTask;
+                    });
 
-                    // Collect static libraries
-                    Collection<Target> staticLibraryTargets = installableTargets.stream()
-                            .filter(t -> t.type.equals("STATIC_LIBRARY"))
-                            .collect(Collectors.toList());
+                    TaskProvider<CMakeInstallTask> installTask = installTasks.computeIfAbsent(build, b ->
+                            registerInstallTask(project, cMakeExtension, b, buildVariantName, buildTask, traceServiceProvider));
+
+                    // Without a generated build, we can't know which linkages the project provides, so lazily
+                    // configured builds expose the linkages declared on the extension instead.
+                    Set<Linkage> linkages;
+                    if (lazyConfiguration) {
+                        linkages = cMakeExtension.getLinkages().get();
+                    } else {
+                        linkages = EnumSet.noneOf(Linkage.class);
+                        if (!build.getSharedLibraryTargets().isEmpty()) {
+                            linkages.add(Linkage.SHARED);
+                        }
+                        if (!build.getStaticLibraryTargets().isEmpty()) {
+                            linkages.add(Linkage.STATIC);
+                        }
+                    }
 
-                    if (!sharedLibraryTargets.isEmpty()) {
+                    if (linkages.contains(Linkage.SHARED)) {
                         // Create variants for shared libraries
-                        Configuration linkElements = project.getConfigurations().create(StringUtils.uncapitalize(variantName) + "SharedLinkElements");
-                        linkElements.setCanBeResolved(false);
-                        linkElements.setCanBeConsumed(true);
-                        linkElements.getAttributes().attribute(Usage.USAGE_ATTRIBUTE, objectFactory.named(Usage.class, Usage.NATIVE_LINK));
-                        addCommonAttributes(buildType, targetMachine, linkElements.getAttributes());
-                        linkElements.getAttributes().attribute(LINKAGE_ATTRIBUTE, Linkage.SHARED);
-
-                        Configuration runtimeElements = project.getConfigurations().create(StringUtils.uncapitalize(variantName) + "SharedRuntimeElements");
-                        runtimeElements.setCanBeResolved(false);
-                        runtimeElements.setCanBeConsumed(true);
-                        runtimeElements.getAttributes().attribute(Usage.USAGE_ATTRIBUTE, objectFactory.named(Usage.class, Usage.NATIVE_RUNTIME));
-                        addCommonAttributes(buildType, targetMachine, runtimeElements.getAttributes());
-                        runtimeElements.getAttributes().attribute(LINKAGE_ATTRIBUTE, Linkage.SHARED);
-
-                        for (Target t : sharedLibraryTargets) {
-                            for (Target.Artifacts artifact : t.artifacts) {
-                                if (artifact.path.endsWith(".dll") || artifact.path.endsWith(".so")) {
-                                    runtimeElements.getOutgoing().artifact(configBuildPath.resolve(artifact.path).toFile(), arti -> arti.builtBy(buildTask));
-                                } else if (artifact.path.endsWith(".lib") || artifact.path.endsWith(".a")) {
-                                    linkElements.getOutgoing().artifact(configBuildPath.resolve(artifact.path).toFile(), arti -> arti.builtBy(buildTask));
-                                } else {
-                                    System.out.println("Ignoring artifact exported by target " + t.name + " (" + t.id + "): " + artifact.path);
-                                }
-                            }
+                        Configuration linkElements = createElements(project, variantName + "SharedLinkElements", Usage.NATIVE_LINK, buildType, targetMachine, Linkage.SHARED);
+                        linkElements.getOutgoing().getArtifacts().addAllLater(artifactsOf(project, build, LazyBuild::getSharedLinkFiles, buildTask, variantName + "-shared"));
+                        component.addVariantsFromConfiguration(linkElements, details -> { });
+
+                        Configuration runtimeElements = createElements(project, variantName + "SharedRuntimeElements", Usage.NATIVE_RUNTIME, buildType, targetMachine, Linkage.SHARED);
+                        ToolChainSelector.Result<CppPlatform> toolChainResult = toolChains.get(targetMachine);
+                        if (cMakeExtension.getSplitDebugInfo().get() && CMakeSplitDebugInfoTask.isSupported(toolChainResult.getToolChain(), targetMachine)) {
+                            // Runtime variants carry stripped libraries, and the debug info split out of them gets variants of its own
+                            File strippedDirectory = project.getLayout().getBuildDirectory().dir("cmake-stripped/" + buildVariantName).get().getAsFile();
+                            File debugInfoDirectory = project.getLayout().getBuildDirectory().dir("cmake-debug-info/" + buildVariantName).get().getAsFile();
+                            TaskProvider<CMakeSplitDebugInfoTask> splitDebugInfoTask = splitDebugInfoTasks.computeIfAbsent(build, b ->
+                                    project.getTasks().register("cmakeSplitDebugInfo" + StringUtils.capitalize(buildVariantName), CMakeSplitDebugInfoTask.class, task -> {
+                                        NativePlatform nativePlatform = ((DefaultCppPlatform) toolChainResult.getTargetPlatform()).getNativePlatform();
+                                        task.getBinaries().from(project.provider(b::getSharedRuntimeFiles));
+                                        task.getObjcopyExecutable().set(project.provider(() ->
+                                                ToolChainProbe.probe(toolChainResult.getToolChain(), nativePlatform).getObjcopy().getAbsolutePath()));
+                                        task.getStripExecutable().set(project.provider(() ->
+                                                ToolChainProbe.probe(toolChainResult.getToolChain(), nativePlatform).getStrip().getAbsolutePath()));
+                                        task.getStrippedDirectory().set(strippedDirectory);
+                                        task.getDebugInfoDirectory().set(debugInfoDirectory);
+                                        task.dependsOn(buildTask);
+                                    }));
+
+                            runtimeElements.getOutgoing().getArtifacts().addAllLater(artifactsOf(project, build, b -> b.getSharedRuntimeFiles().stream()
+                                    .map(file -> CMakeSplitDebugInfoTask.strippedFile(strippedDirectory, file))
+                                    .collect(Collectors.toList()), splitDebugInfoTask, variantName + "-shared"));
+
+                            Configuration debugInfoElements = createElements(project, variantName + "SharedDebugInfoElements", DEBUG_INFO_USAGE, buildType, targetMachine, Linkage.SHARED);
+                            debugInfoElements.getOutgoing().getArtifacts().addAllLater(artifactsOf(project, build, b -> b.getSharedRuntimeFiles().stream()
+                                    .map(file -> CMakeSplitDebugInfoTask.debugInfoFile(debugInfoDirectory, file))
+                                    .collect(Collectors.toList()), splitDebugInfoTask, variantName + "-debug"));
+                            component.addVariantsFromConfiguration(debugInfoElements, details -> { });
+                        } else {
+                            runtimeElements.getOutgoing().getArtifacts().addAllLater(artifactsOf(project, build, LazyBuild::getSharedRuntimeFiles, buildTask, variantName + "-shared"));
                         }
+                        component.addVariantsFromConfiguration(runtimeElements, details -> { });
                     }
 
-                    if (!staticLibraryTargets.isEmpty()) {
+                    if (linkages.contains(Linkage.STATIC)) {
                         // Create variants for static libraries
-                        Configuration linkElements = project.getConfigurations().create(StringUtils.uncapitalize(variantName) + "StaticLinkElements");
-                        linkElements.setCanBeResolved(false);
-                        linkElements.setCanBeConsumed(true);
-                        linkElements.getAttributes().attribute(Usage.USAGE_ATTRIBUTE, objectFactory.named(Usage.class, Usage.NATIVE_LINK));
-                        addCommonAttributes(buildType, targetMachine, linkElements.getAttributes());
-                        linkElements.getAttributes().attribute(LINKAGE_ATTRIBUTE, Linkage.STATIC);
-
-                        for (Target t : staticLibraryTargets) {
-                            for (Target.Artifacts artifact : t.artifacts) {
-                                if (artifact.path.endsWith(".lib") || artifact.path.endsWith(".a")) {
-                                    linkElements.getOutgoing().artifact(configBuildPath.resolve(artifact.path).toFile(), arti -> arti.builtBy(buildTask));
-                                } else {
-                                    System.out.println("Ignoring artifact exported by target " + t.name + " (" + t.id + "): " + artifact.path);
-                                }
-                            }
+                        Configuration linkElements = createElements(project, variantName + "StaticLinkElements", Usage.NATIVE_LINK, buildType, targetMachine, Linkage.STATIC);
+                        linkElements.getOutgoing().getArtifacts().addAllLater(artifactsOf(project, build, LazyBuild::getStaticLinkFiles, buildTask, variantName + "-static"));
+                        component.addVariantsFromConfiguration(linkElements, details -> { });
+
+                        LazyBuild linkTimeOptimizedBuild = machineLinkTimeOptimizedBuilds.get(targetMachine).get(buildType);
+                        if (linkTimeOptimizedBuild != null) {
+                            // Variants for static libraries that a consumer's link-time optimization can optimize across
+                            String linkTimeOptimizedVariantName = createVariantName(linkTimeOptimizedBuild.buildType, targetMachine,
+                                    cMakeExtension.getTargetMachines().get()) + linkTimeOptimizedBuild.variantSuffix;
+                            TaskProvider<CMakeBuildTask> linkTimeOptimizedBuildTask = buildTasks.computeIfAbsent(linkTimeOptimizedBuild, b ->
+                                    registerBuildTask(project, cMakeExtension, b, linkTimeOptimizedVariantName, null, jobService, traceServiceProvider));
+
+                            Configuration ltoLinkElements = createElements(project, variantName + "LtoStaticLinkElements", Usage.NATIVE_LINK, buildType, targetMachine, Linkage.STATIC);
+                            ltoLinkElements.getAttributes().attribute(LINK_TIME_OPTIMIZED_ATTRIBUTE, true);
+                            ltoLinkElements.getOutgoing().capability(project.getGroup() + ":" + project.getName()
+                                    + LINK_TIME_OPTIMIZED_CAPABILITY_SUFFIX + ":" + project.getVersion());
+                            ltoLinkElements.getOutgoing().getArtifacts().addAllLater(artifactsOf(project, linkTimeOptimizedBuild, LazyBuild::getStaticLinkFiles,
+                                    linkTimeOptimizedBuildTask, variantName + "-lto-static"));
+                            component.addVariantsFromConfiguration(ltoLinkElements, details -> { });
                         }
                     }
 
-                    Configuration includeElements = project.getConfigurations().create(StringUtils.uncapitalize(variantName) + "ApiElements");
-                    includeElements.setCanBeResolved(false);
-                    includeElements.setCanBeConsumed(true);
-                    includeElements.getAttributes().attribute(Usage.USAGE_ATTRIBUTE, project.getObjects().named(Usage.class, Usage.C_PLUS_PLUS_API));
-                    addCommonAttributes(buildType, targetMachine, includeElements.getAttributes());
+                    Configuration includeElements = createElements(project, variantName + "ApiElements", Usage.C_PLUS_PLUS_API, buildType, targetMachine, null);
+                    if (publishing) {
+                        // Directories can't be published, so the published variant carries the headers zipped. Consumers in this
+                        // build, which ask for a directory, are still given the install directory through a secondary variant.
+                        TaskProvider<Zip> headerZipTask = headerZipTasks.computeIfAbsent(build, b ->
+                                project.getTasks().register("cmakeHeaderZip" + StringUtils.capitalize(buildVariantName), Zip.class, zip -> {
+                                    zip.from(installTask.flatMap(CMakeInstallTask::getIncludeDirectory));
+                                    zip.dependsOn(installTask);
+                                    zip.getArchiveBaseName().set(project.getName() + "-" + buildVariantName + "-headers");
+                                    zip.getDestinationDirectory().set(project.getLayout().getBuildDirectory().dir("cmake-headers"));
+                                }));
+
+                        includeElements.getOutgoing().artifact(headerZipTask, arti -> arti.setClassifier(variantName + "-headers"));
+                        includeElements.getOutgoing().getVariants().create("directory", directoryVariant -> {
+                            directoryVariant.getAttributes().attribute(ArtifactAttributes.ARTIFACT_FORMAT, ArtifactTypeDefinition.DIRECTORY_TYPE);
+                            directoryVariant.artifact(installTask.flatMap(CMakeInstallTask::getIncludeDirectory), arti -> arti.builtBy(installTask));
+                        });
+                        component.addVariantsFromConfiguration(includeElements, details -> { });
+                    } else {
+                        includeElements.getAttributes().attribute(ArtifactAttributes.ARTIFACT_FORMAT, ArtifactTypeDefinition.DIRECTORY_TYPE);
+                        includeElements.getOutgoing().artifact(installTask.flatMap(CMakeInstallTask::getIncludeDirectory), arti -> arti.builtBy(installTask));
+                    }
+                }
+            }
+
+            for (Map.Entry<TargetMachine, Map<BuildType, PrebuiltVariant>> machinePrebuilts : prebuiltVariants.entrySet()) {
+                TargetMachine targetMachine = machinePrebuilts.getKey();
+
+                for (Map.Entry<BuildType, PrebuiltVariant> typePrebuilt : machinePrebuilts.getValue().entrySet()) {
+                    BuildType buildType = typePrebuilt.getKey();
+                    PrebuiltVariant prebuilt = typePrebuilt.getValue();
+
+                    String variantName = createVariantName(buildType.getName(), targetMachine, cMakeExtension.getTargetMachines().get());
+
+                    if (prebuilt.getSharedLinkFiles() != null && prebuilt.getSharedRuntimeFiles() != null) {
+                        Configuration linkElements = createElements(project, variantName + "SharedLinkElements", Usage.NATIVE_LINK, buildType, targetMachine, Linkage.SHARED);
+                        linkElements.getOutgoing().getArtifacts().addAllLater(artifactsOf(project, prebuilt.getSharedLinkFiles()));
+
+                        Configuration runtimeElements = createElements(project, variantName + "SharedRuntimeElements", Usage.NATIVE_RUNTIME, buildType, targetMachine, Linkage.SHARED);
+                        runtimeElements.getOutgoing().getArtifacts().addAllLater(artifactsOf(project, prebuilt.getSharedRuntimeFiles()));
+                    }
+
+                    if (prebuilt.getStaticLinkFiles() != null) {
+                        Configuration linkElements = createElements(project, variantName + "StaticLinkElements", Usage.NATIVE_LINK, buildType, targetMachine, Linkage.STATIC);
+                        linkElements.getOutgoing().getArtifacts().addAllLater(artifactsOf(project, prebuilt.getStaticLinkFiles()));
+                    }
+
+                    Configuration includeElements = createElements(project, variantName + "ApiElements", Usage.C_PLUS_PLUS_API, buildType, targetMachine, null);
                     includeElements.getAttributes().attribute(ArtifactAttributes.ARTIFACT_FORMAT, ArtifactTypeDefinition.DIRECTORY_TYPE);
-                    includeElements.getOutgoing().artifact(installTask.flatMap(CMakeInstallTask::getIncludeDirectory), arti -> arti.builtBy(installTask));
+                    includeElements.getOutgoing().getArtifacts().addAllLater(artifactsOf(project, prebuilt.getHeaders()));
                 }
             }
+
+            if (publishing) {
+                project.getExtensions().configure(PublishingExtension.class, publishingExtension ->
+                        publishingExtension.getPublications().create("cmake", MavenPublication.class, publication -> publication.from(component)));
+            }
         });
     }
+
+    private static TaskProvider<CMakeBuildTask> registerBuildTask(Project project, CMakeExtension cMakeExtension, LazyBuild b, String buildVariantName,
+                                                                  @Nullable TaskProvider<CMakeProfileMergeTask> profileMergeTask,
+                                                                  Provider<CMakeJobService> jobService, Provider<CMakeTraceService> traceServiceProvider) {
+        return project.getTasks().register("cmakeBuild" + StringUtils.capitalize(buildVariantName), CMakeBuildTask.class, task -> {
+            task.getBuildType().set(project.provider(b::getConfigurationName));
+            task.getCmakeFiles().set(project.file(b.buildPath));
+            task.getCmakeExecutable().set(cMakeExtension.getCmakeExecutable());
+            task.getSharedBuildDirectory().set(b.directory.sharedSources != null);
+            if (b.directory.sharedSources != null) {
+                task.getSyncedSourceDirectory().set(b.directory.sharedSources.checkoutPath.toFile());
+                task.getSyncExcludedDirectories().from(b.directory.sharedSources.excluded);
+            }
+            task.getConfigureCommandLine().set(project.provider(() -> b.directory.getConfigureCommand().getCommandLine()));
+            task.getTargets().set(project.provider(b::getBuiltTargetNames));
+            task.getSources().from(sourcesOf(project, b));
+            task.getConfigureFingerprint().set(project.provider(() -> CMakeConfigureCache.readFingerprint(b.buildPath).orElse(null)));
+            task.getArtifacts().from(project.provider(b::getArtifactFiles));
+            task.getJobService().set(jobService);
+            if (cMakeExtension.getUseCompilerLauncher().get() && cMakeExtension.getCompilerLauncher().isPresent()) {
+                task.getCompilerLauncher().set(cMakeExtension.getCompilerLauncher());
+                task.getCompilerLauncherEnvironment().set(project.provider(() -> CompilerLauncher.environment(
+                        cMakeExtension.getCompilerLauncher().get(),
+                        cMakeExtension.getCompilerLauncherCacheDirectory().get().getAsFile(),
+                        cMakeExtension.getCompilerLauncherMaxSize().get())));
+            }
+            if (profileMergeTask != null) {
+                task.getProfileDirectory().set(profileMergeTask.flatMap(CMakeProfileMergeTask::getProfileDirectory));
+            }
+            task.usesService(jobService);
+            task.getTraceService().set(traceServiceProvider);
+            task.getTraceName().set(b.directory.name);
+            task.usesService(traceServiceProvider);
+        });
+    }
+
+    private static TaskProvider<CMakeInstallTask> registerInstallTask(Project project, CMakeExtension cMakeExtension, LazyBuild b, String buildVariantName,
+                                                                      TaskProvider<CMakeBuildTask> buildTask, Provider<CMakeTraceService> traceServiceProvider) {
+        return project.getTasks().register("cmakeInstall" + StringUtils.capitalize(buildVariantName), CMakeInstallTask.class, task -> {
+            task.getBuildType().set(project.provider(b::getConfigurationName));
+            task.getCmakeFiles().set(project.file(b.buildPath));
+            task.getCmakeExecutable().set(cMakeExtension.getCmakeExecutable());
+            task.getSharedBuildDirectory().set(b.directory.sharedSources != null);
+            if (b.directory.sharedSources != null) {
+                task.getSyncedSourceDirectory().set(b.directory.sharedSources.checkoutPath.toFile());
+                task.getSyncExcludedDirectories().from(b.directory.sharedSources.excluded);
+            }
+            task.getTraceService().set(traceServiceProvider);
+            task.getTraceName().set(b.directory.name);
+            task.usesService(traceServiceProvider);
+            task.getInstallDirectory().set(project.getLayout().getBuildDirectory().dir("cmake-install/" + buildVariantName));
+            task.getInstallMode().set(cMakeExtension.getInstallMode());
+            task.getSourceDirectory().set(project.file(b.directory.sourcePath));
+            task.getComponents().set(project.provider(b::getInstallComponents));
+            task.getSources().from(sourcesOf(project, b));
+            task.getConfigureFingerprint().set(project.provider(() -> CMakeConfigureCache.readFingerprint(b.buildPath).orElse(null)));
+            task.getArtifacts().from(buildTask.map(CMakeBuildTask::getArtifacts));
+            task.dependsOn(buildTask);
+        });
+    }
+
+    /**
+     * A CMake build directory that has been generated, along with the codemodel it produced.
+     */
+    private static class GeneratedDirectory {
+        private final CMakeInstance instance;
+        private final Path buildPath;
+        private final CodeModel codeModel;
+        // Whether an earlier configure was reused, rather than running cmake
+        private final boolean reused;
+
+        private GeneratedDirectory(CMakeInstance instance, Path buildPath, CodeModel codeModel, boolean reused) {
+            this.instance = instance;
+            this.buildPath = buildPath;
+            this.codeModel = codeModel;
+            this.reused = reused;
+        }
+    }
+
+    /**
+     * A configuration of a generated CMake build directory.
+     */
+    private static class ConfiguredBuild {
+        private final CMakeInstance instance;
+        private final Path buildPath;
+        private final String buildType;
+        private final CodeModel.Configuration configuration;
+
+        private ConfiguredBuild(CMakeInstance instance, Path buildPath, String buildType, CodeModel.Configuration configuration) {
+            this.instance = instance;
+            this.buildPath = buildPath;
+            this.buildType = buildType;
+            this.configuration = configuration;
+        }
+    }
+
+    /**
+     * A CMake build directory that is only generated the first time something asks for it.
+     */
+    private static class LazyDirectory {
+        private final String name;
+        private final Path sourcePath;
+        private final Path buildPath;
+        // Where the sources are synced from, if the directory is in the shared build cache and so must be locked while in use
+        @Nullable
+        private final SharedSources sharedSources;
+        // Declares the files a generated codemodel was read from as inputs of the project's configuration
+        private final Consumer<Path> configurationInputs;
+        private final Supplier<CMakeGenerator.ConfigureCommand> createCommand;
+        private final Function<CMakeGenerator.ConfigureCommand, GeneratedDirectory> configure;
+
+        private CMakeGenerator.ConfigureCommand command;
+        private GeneratedDirectory generated;
+
+        private LazyDirectory(String name, Path sourcePath, Path buildPath, @Nullable SharedSources sharedSources, Consumer<Path> configurationInputs,
+                              Supplier<CMakeGenerator.ConfigureCommand> createCommand,
+                              Function<CMakeGenerator.ConfigureCommand, GeneratedDirectory> configure) {
+            this.name = name;
+            this.sourcePath = sourcePath;
+            this.buildPath = buildPath;
+            this.sharedSources = sharedSources;
+            this.configurationInputs = configurationInputs;
+            this.createCommand = createCommand;
+            this.configure = configure;
+        }
+
+        private synchronized CMakeGenerator.ConfigureCommand getConfigureCommand() {
+            if (command == null) {
+                command = createCommand.get();
+            }
+            return command;
+        }
+
+        private synchronized GeneratedDirectory get() {
+            if (generated == null) {
+                generated = configure.apply(getConfigureCommand());
+            }
+            return generated;
+        }
+
+        /**
+         * The file of the checkout that {@code file} of these sources was synced from, which is the one tasks and the
+         * configuration cache must watch, as the copy is only brought up to date when something builds from it.
+         */
+        private Path checkoutFile(Path file) {
+            if (sharedSources == null || !file.startsWith(sourcePath)) {
+                return file;
+            }
+            return sharedSources.checkoutPath.resolve(sourcePath.relativize(file).toString());
+        }
+    }
+
+    /**
+     * The checkout that the sources of shared build directories are synced from, leaving out {@code excluded}.
+     */
+    private static class SharedSources {
+        private final SharedBuildCache cache;
+        private final Path checkoutPath;
+        private final List<Path> excluded;
+
+        private SharedSources(SharedBuildCache cache, Path checkoutPath, List<Path> excluded) {
+            this.cache = cache;
+            this.checkoutPath = checkoutPath;
+            this.excluded = excluded;
+        }
+    }
+
+    /**
+     * How the optimized build of profile-guided optimization gets its profiles: from training its instrumented build,
+     * which writes raw profiles to {@code rawProfilePath}, merged into {@code profilePath}.
+     */
+    private static class Profile {
+        private final LazyBuild instrumented;
+        private final ProfileGuidedOptimization.Compiler compiler;
+        private final Path rawProfilePath;
+        private final Path profilePath;
+
+        private Profile(LazyBuild instrumented, ProfileGuidedOptimization.Compiler compiler, Path rawProfilePath, Path profilePath) {
+            this.instrumented = instrumented;
+            this.compiler = compiler;
+            this.rawProfilePath = rawProfilePath;
+            this.profilePath = profilePath;
+        }
+    }
+
+    /**
+     * A configuration of a CMake build directory, which is only generated, and has its targets read, the first time something asks for them.
+     */
+    private static class LazyBuild {
+        private final LazyDirectory directory;
+        private final Path buildPath;
+        private final String buildType;
+        // Tells the tasks of builds of the same configuration apart, such as the builds of profile-guided optimization
+        private final String variantSuffix;
+        @Nullable
+        private final Profile profile;
+        private final CMakeModelService modelService;
+        private final CMakeTraceService traceService;
+        private final ExportedTargets exportedTargets;
+
+        private ConfiguredBuild configured;
+
+        private List<String> builtTargetNames;
+        private List<String> installComponents;
+        private List<File> sourceFiles;
+        private List<File> includeDirectories;
+        private List<File> artifactFiles;
+        private List<CMakeTargetReply> sharedLibraryTargets;
+        private List<CMakeTargetReply> staticLibraryTargets;
+
+        private List<File> sharedRuntimeFiles;
+        private List<File> sharedLinkFiles;
+        private List<File> staticLinkFiles;
+
+        private LazyBuild(LazyDirectory directory, String buildType, CMakeModelService modelService, CMakeTraceService traceService,
+                          ExportedTargets exportedTargets) {
+            this(directory, buildType, "", null, modelService, traceService, exportedTargets);
+        }
+
+        private LazyBuild(LazyDirectory directory, String buildType, String variantSuffix, @Nullable Profile profile,
+                          CMakeModelService modelService, CMakeTraceService traceService, ExportedTargets exportedTargets) {
+            this.directory = directory;
+            this.buildPath = directory.buildPath;
+            this.buildType = buildType;
+            this.variantSuffix = variantSuffix;
+            this.profile = profile;
+            this.modelService = modelService;
+            this.traceService = traceService;
+            this.exportedTargets = exportedTargets;
+        }
+
+        private synchronized ConfiguredBuild get() {
+            if (configured == null) {
+                GeneratedDirectory generated = directory.get();
+
+                CodeModel.Configuration configuration = generated.codeModel.configurations.stream()
+                        .filter(c -> c.name.equalsIgnoreCase(buildType))
+                        .findAny()
+                        .orElseThrow(() -> new IllegalStateException("Configuration for configuration " + buildType + " generator run could not be found."));
+
+                configured = new ConfiguredBuild(generated.instance, generated.buildPath, buildType, configuration);
+            }
+            return configured;
+        }
+
+        private synchronized void readTargets() {
+            if (sharedLibraryTargets != null) {
+                return;
+            }
+
+            ConfiguredBuild build = get();
+
+            // The configuration cache stores everything read from here on, which is only valid for as long as what
+            // CMake configured from is unchanged. This runs on the configuring thread, unlike the configure itself.
+            CMakeConfigureCache.readModelInputs(buildPath).stream()
+                    .map(directory::checkoutFile)
+                    .forEach(directory.configurationInputs);
+
+            List<CMakeTargetReply> installableTargets;
+            try (CMakeTraceService.Span span = traceService.start("read target replies", directory.name)) {
+                List<CMakeTargetReply> targets = modelService.getTargets(buildPath, build.configuration.name,
+                        () -> CMakeTargetReply.readAll(buildPath, build.configuration.targets.stream()
+                                .map(t -> t.jsonFile)
+                                .collect(Collectors.toList())));
+                installableTargets = targets.stream()
+                        .filter(t -> t.install != null)
+                        .collect(Collectors.toList());
+                span.arg("targets", targets.size()).arg("installableTargets", installableTargets.size());
+            }
+
+            // Only installable targets are built, as tests, examples and the like are never published
+            List<CMakeTargetReply> builtTargets = installableTargets;
+            installComponents = List.of();
+            if (exportedTargets.isSelective()) {
+                Optional<List<CMakeInstallRules.Installer>> installers = CMakeInstallRules.read(buildPath, build.configuration.name);
+                if (installers.isPresent()) {
+                    // Installing works per component, so the components of the exported targets are installed whole,
+                    // along with the components of rules that don't install targets, such as headers. Every target
+                    // those components install has to be built.
+                    Set<String> exportedIds = installableTargets.stream()
+                            .filter(t -> exportedTargets.test(t.name))
+                            .map(t -> t.id)
+                            .collect(Collectors.toSet());
+                    Set<String> components = installers.get().stream()
+                            .filter(i -> !CMakeInstallRules.TARGET_TYPE.equals(i.type) || exportedIds.contains(i.targetId))
+                            .map(i -> i.component)
+                            .collect(Collectors.toCollection(LinkedHashSet::new));
+                    Set<String> installedIds = installers.get().stream()
+                            .filter(i -> CMakeInstallRules.TARGET_TYPE.equals(i.type) && components.contains(i.component))
+                            .map(i -> i.targetId)
+                            .collect(Collectors.toSet());
+                    builtTargets = installableTargets.stream()
+                            .filter(t -> installedIds.contains(t.id))
+                            .collect(Collectors.toList());
+                    installComponents = new ArrayList<>(components);
+                } else {
+                    LOGGER.info("{} does not report its install components, which needs CMake 3.22, so every installable target is built.",
+                            directory.name);
+                }
+            }
+            builtTargetNames = builtTargets.stream()
+                    .map(t -> t.name)
+                    .collect(Collectors.toList());
+
+            // Only what the built targets consist of is tracked as build inputs and outputs, rather than the whole build directory
+            Path sourcePath = directory.sourcePath;
+            sourceFiles = new ArrayList<>();
+            includeDirectories = new ArrayList<>();
+            artifactFiles = new ArrayList<>();
+            for (CMakeTargetReply t : builtTargets) {
+                if (t.sources != null) {
+                    for (CMakeTargetReply.Source source : t.sources) {
+                        if (!source.isGenerated) {
+                            sourceFiles.add(directory.checkoutFile(sourcePath.resolve(source.path)).toFile());
+                        }
+                    }
+                }
+                if (t.compileGroups != null) {
+                    for (CMakeTargetReply.CompileGroup compileGroup : t.compileGroups) {
+                        if (compileGroup.includes == null) {
+                            continue;
+                        }
+                        for (CMakeTargetReply.Include include : compileGroup.includes) {
+                            Path includePath = sourcePath.resolve(include.path).normalize();
+                            // Headers outside of the project (system and toolchain headers) are not tracked
+                            File includeDirectory = directory.checkoutFile(includePath).toFile();
+                            if (includePath.startsWith(sourcePath) && !includePath.startsWith(buildPath)
+                                    && !includeDirectories.contains(includeDirectory)) {
+                                includeDirectories.add(includeDirectory);
+                            }
+                        }
+                    }
+                }
+                if (t.artifacts != null) {
+                    for (CMakeTargetReply.Artifact artifact : t.artifacts) {
+                        artifactFiles.add(buildPath.resolve(artifact.path).toFile());
+                    }
+                }
+            }
+            CMakeConfigureCache.readInputs(buildPath).forEach(input -> sourceFiles.add(directory.checkoutFile(input).toFile()));
+
+            // Collect shared libraries
+            sharedLibraryTargets = installableTargets.stream()
+                    .filter(t -> t.type.equals("SHARED_LIBRARY"))
+                    .filter(t -> exportedTargets.test(t.name))
+                    .collect(Collectors.toList());
+
+            // Collect static libraries
+            staticLibraryTargets = installableTargets.stream()
+                    .filter(t -> t.type.equals("STATIC_LIBRARY"))
+                    .filter(t -> exportedTargets.test(t.name))
+                    .collect(Collectors.toList());
+
+            sharedRuntimeFiles = new ArrayList<>();
+            sharedLinkFiles = new ArrayList<>();
+            staticLinkFiles = new ArrayList<>();
+
+            for (CMakeTargetReply t : sharedLibraryTargets) {
+                for (CMakeTargetReply.Artifact artifact : t.artifacts) {
+                    CMakeTargetReply.Kind kind = artifact.kind();
+                    if (kind == CMakeTargetReply.Kind.RUNTIME) {
+                        sharedRuntimeFiles.add(buildPath.resolve(artifact.path).toFile());
+                    } else if (kind == CMakeTargetReply.Kind.LINK) {
+                        sharedLinkFiles.add(buildPath.resolve(artifact.path).toFile());
+                    } else {
+                        LOGGER.info("Ignoring artifact exported by target {} ({}): {}", t.name, t.id, artifact.path);
+                    }
+                }
+            }
+
+            for (CMakeTargetReply t : staticLibraryTargets) {
+                for (CMakeTargetReply.Artifact artifact : t.artifacts) {
+                    if (artifact.kind() == CMakeTargetReply.Kind.LINK) {
+                        staticLinkFiles.add(buildPath.resolve(artifact.path).toFile());
+                    } else {
+                        LOGGER.info("Ignoring artifact exported by target {} ({}): {}", t.name, t.id, artifact.path);
+                    }
+                }
+            }
+        }
+
+        /**
+         * The name CMake gave this build's configuration, which may differ in case from {@link #buildType}.
+         */
+        private synchronized String getConfigurationName() {
+            return get().configuration.name;
+        }
+
+        private synchronized List<String> getTargetReplyFiles() {
+            return get().configuration.targets.stream()
+                    .map(t -> t.jsonFile)
+                    .collect(Collectors.toList());
+        }
+
+        private synchronized List<String> getBuiltTargetNames() {
+            readTargets();
+            return builtTargetNames;
+        }
+
+        /**
+         * The install components to install, or none to install everything.
+         */
+        private synchronized List<String> getInstallComponents() {
+            readTargets();
+            return installComponents;
+        }
+
+        private synchronized List<File> getSourceFiles() {
+            readTargets();
+            return sourceFiles;
+        }
+
+        private synchronized List<File> getIncludeDirectories() {
+            readTargets();
+            return includeDirectories;
+        }
+
+        private synchronized List<File> getArtifactFiles() {
+            readTargets();
+            return artifactFiles;
+        }
+
+        private synchronized List<CMakeTargetReply> getSharedLibraryTargets() {
+            readTargets();
+            return sharedLibraryTargets;
+        }
+
+        private synchronized List<CMakeTargetReply> getStaticLibraryTargets() {
+            readTargets();
+            return staticLibraryTargets;
+        }
+
+        private synchronized List<File> getSharedRuntimeFiles() {
+            readTargets();
+            return sharedRuntimeFiles;
+        }
+
+        private synchronized List<File> getSharedLinkFiles() {
+            readTargets();
+            return sharedLinkFiles;
+        }
+
+        private synchronized List<File> getStaticLinkFiles() {
+            readTargets();
+            return staticLinkFiles;
+        }
+    }
 }
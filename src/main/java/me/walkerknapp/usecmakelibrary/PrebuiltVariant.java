@@ -0,0 +1,191 @@
+package me.walkerknapp.usecmakelibrary;
+
+import com.dslplatform.json.DslJson;
+import com.dslplatform.json.runtime.Settings;
+import org.gradle.api.Project;
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.type.ArtifactTypeDefinition;
+import org.gradle.api.attributes.Usage;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.internal.artifacts.ArtifactAttributes;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.language.nativeplatform.internal.BuildType;
+import org.gradle.nativeplatform.Linkage;
+import org.gradle.nativeplatform.TargetMachine;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.gradle.language.cpp.CppBinary.DEBUGGABLE_ATTRIBUTE;
+import static org.gradle.language.cpp.CppBinary.LINKAGE_ATTRIBUTE;
+import static org.gradle.language.cpp.CppBinary.OPTIMIZED_ATTRIBUTE;
+import static org.gradle.nativeplatform.MachineArchitecture.ARCHITECTURE_ATTRIBUTE;
+import static org.gradle.nativeplatform.OperatingSystemFamily.OPERATING_SYSTEM_ATTRIBUTE;
+
+/**
+ * A variant of the library whose headers and binaries were resolved from a repository, as published by this plugin,
+ * instead of being built from source.
+ */
+class PrebuiltVariant {
+    private static final Logger LOGGER = Logging.getLogger(PrebuiltVariant.class);
+    private static final DslJson<Object> JSON = new DslJson<>(Settings.withRuntime().includeServiceLoader());
+
+    private final FileCollection headers;
+    @Nullable
+    private final FileCollection sharedLinkFiles;
+    @Nullable
+    private final FileCollection sharedRuntimeFiles;
+    @Nullable
+    private final FileCollection staticLinkFiles;
+
+    private PrebuiltVariant(FileCollection headers, @Nullable FileCollection sharedLinkFiles,
+                            @Nullable FileCollection sharedRuntimeFiles, @Nullable FileCollection staticLinkFiles) {
+        this.headers = headers;
+        this.sharedLinkFiles = sharedLinkFiles;
+        this.sharedRuntimeFiles = sharedRuntimeFiles;
+        this.staticLinkFiles = staticLinkFiles;
+    }
+
+    /**
+     * Finds the variants of every target machine and build type that the module at {@code coordinates} publishes.
+     * Only the module's metadata is resolved to find them, once for every variant, while their headers and binaries
+     * are only resolved once they are needed. A variant is only considered available if its headers, and at least
+     * one linkage, are published.
+     */
+    static Map<TargetMachine, Map<BuildType, PrebuiltVariant>> resolveAll(Project project, String coordinates, Collection<TargetMachine> targetMachines) {
+        Map<TargetMachine, Map<BuildType, PrebuiltVariant>> prebuiltVariants = new LinkedHashMap<>();
+        Optional<List<Map<String, Object>>> published = publishedVariants(project, coordinates);
+        if (published.isEmpty()) {
+            return prebuiltVariants;
+        }
+
+        for (TargetMachine targetMachine : targetMachines) {
+            for (BuildType buildType : BuildType.DEFAULT_BUILD_TYPES) {
+                if (!isPublished(published.get(), Usage.C_PLUS_PLUS_API, buildType, targetMachine, null)) {
+                    continue;
+                }
+                boolean hasShared = isPublished(published.get(), Usage.NATIVE_LINK, buildType, targetMachine, Linkage.SHARED)
+                        && isPublished(published.get(), Usage.NATIVE_RUNTIME, buildType, targetMachine, Linkage.SHARED);
+                boolean hasStatic = isPublished(published.get(), Usage.NATIVE_LINK, buildType, targetMachine, Linkage.STATIC);
+                if (!hasShared && !hasStatic) {
+                    continue;
+                }
+
+                // Headers are published zipped, the native base plugin's transform unpacks them for us
+                FileCollection headers = detachedConfiguration(project, coordinates, Usage.C_PLUS_PLUS_API, buildType, targetMachine, null)
+                        .getIncoming()
+                        .artifactView(view -> view.getAttributes().attribute(ArtifactAttributes.ARTIFACT_FORMAT, ArtifactTypeDefinition.DIRECTORY_TYPE))
+                        .getFiles();
+
+                prebuiltVariants.computeIfAbsent(targetMachine, t -> new LinkedHashMap<>()).put(buildType, new PrebuiltVariant(headers,
+                        hasShared ? files(project, coordinates, Usage.NATIVE_LINK, buildType, targetMachine, Linkage.SHARED) : null,
+                        hasShared ? files(project, coordinates, Usage.NATIVE_RUNTIME, buildType, targetMachine, Linkage.SHARED) : null,
+                        hasStatic ? files(project, coordinates, Usage.NATIVE_LINK, buildType, targetMachine, Linkage.STATIC) : null));
+            }
+        }
+        return prebuiltVariants;
+    }
+
+    /**
+     * The attributes of every variant in the Gradle module metadata of the module at {@code coordinates}, if it
+     * can be resolved.
+     */
+    private static Optional<List<Map<String, Object>>> publishedVariants(Project project, String coordinates) {
+        Configuration metadata = project.getConfigurations().detachedConfiguration(project.getDependencies().create(coordinates + "@module"));
+        metadata.setTransitive(false);
+        Set<File> files = metadata.getResolvedConfiguration().getLenientConfiguration().getFiles();
+        if (files.isEmpty()) {
+            return Optional.empty();
+        }
+
+        try (InputStream input = Files.newInputStream(files.iterator().next().toPath())) {
+            ModuleMetadata module = JSON.deserialize(ModuleMetadata.class, input);
+            if (module == null || module.variants == null) {
+                return Optional.empty();
+            }
+            return Optional.of(module.variants.stream()
+                    .map(variant -> variant.attributes == null ? Map.<String, Object>of() : variant.attributes)
+                    .collect(Collectors.toList()));
+        } catch (IOException e) {
+            LOGGER.warn("Could not read the module metadata of {}, so every variant is built from source.", coordinates, e);
+            return Optional.empty();
+        }
+    }
+
+    private static boolean isPublished(List<Map<String, Object>> published, String usage, BuildType buildType,
+                                       TargetMachine targetMachine, @Nullable Linkage linkage) {
+        Map<String, String> expected = new HashMap<>();
+        expected.put(Usage.USAGE_ATTRIBUTE.getName(), usage);
+        expected.put(DEBUGGABLE_ATTRIBUTE.getName(), String.valueOf(buildType.isDebuggable()));
+        expected.put(OPTIMIZED_ATTRIBUTE.getName(), String.valueOf(buildType.isOptimized()));
+        expected.put(ARCHITECTURE_ATTRIBUTE.getName(), targetMachine.getArchitecture().getName());
+        expected.put(OPERATING_SYSTEM_ATTRIBUTE.getName(), targetMachine.getOperatingSystemFamily().getName());
+        if (linkage != null) {
+            expected.put(LINKAGE_ATTRIBUTE.getName(), linkage.name());
+        }
+        // Link-time optimized variants are published under their own capability, and never stand in for these
+        return published.stream()
+                .filter(attributes -> !"true".equals(String.valueOf(attributes.get(CMakeLibrary.LINK_TIME_OPTIMIZED_ATTRIBUTE.getName()))))
+                .anyMatch(attributes -> expected.entrySet().stream()
+                        .allMatch(e -> e.getValue().equals(String.valueOf(attributes.get(e.getKey())))));
+    }
+
+    private static FileCollection files(Project project, String coordinates, String usage, BuildType buildType,
+                                        TargetMachine targetMachine, Linkage linkage) {
+        return detachedConfiguration(project, coordinates, usage, buildType, targetMachine, linkage).getIncoming().getFiles();
+    }
+
+    private static Configuration detachedConfiguration(Project project, String coordinates, String usage, BuildType buildType,
+                                                       TargetMachine targetMachine, @Nullable Linkage linkage) {
+        Configuration configuration = project.getConfigurations().detachedConfiguration(project.getDependencies().create(coordinates));
+        configuration.setTransitive(false);
+        configuration.getAttributes().attribute(Usage.USAGE_ATTRIBUTE, project.getObjects().named(Usage.class, usage));
+        CMakeLibrary.addCommonAttributes(buildType, targetMachine, configuration.getAttributes());
+        if (linkage != null) {
+            configuration.getAttributes().attribute(LINKAGE_ATTRIBUTE, linkage);
+        }
+        return configuration;
+    }
+
+    /**
+     * The parts of a Gradle module metadata file that tell which variants a module publishes.
+     */
+    public static class ModuleMetadata {
+        public List<Variant> variants;
+    }
+
+    public static class Variant {
+        public Map<String, Object> attributes;
+    }
+
+    FileCollection getHeaders() {
+        return headers;
+    }
+
+    @Nullable
+    FileCollection getSharedLinkFiles() {
+        return sharedLinkFiles;
+    }
+
+    @Nullable
+    FileCollection getSharedRuntimeFiles() {
+        return sharedRuntimeFiles;
+    }
+
+    @Nullable
+    FileCollection getStaticLinkFiles() {
+        return staticLinkFiles;
+    }
+}
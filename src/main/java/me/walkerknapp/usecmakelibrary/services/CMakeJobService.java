@@ -0,0 +1,101 @@
+package me.walkerknapp.usecmakelibrary.services;
+
+import org.gradle.api.provider.Property;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+/**
+ * Owns the compile job budget shared by every CMake build in a Gradle build, so that CMake builds running
+ * at the same time together use the available workers without oversubscribing the machine.
+ */
+public abstract class CMakeJobService implements BuildService<CMakeJobService.Params> {
+    public static final String NAME = "cmakeJobs";
+
+    public interface Params extends BuildServiceParameters {
+        Property<Integer> getMaxJobs();
+
+        /**
+         * The number of CMake builds this Gradle build is expected to run, being the build tasks in its task graph.
+         */
+        Property<Integer> getExpectedBuilds();
+    }
+
+    private final int maxJobs;
+    private final int expectedBuilds;
+    // Guarded by this service: jobs not leased to any build, the builds waiting for or holding a lease, and the
+    // builds that have asked for one so far
+    private int freeJobs;
+    private int builds;
+    private int startedBuilds;
+
+    public CMakeJobService() {
+        this.maxJobs = Math.max(1, getParameters().getMaxJobs().get());
+        this.expectedBuilds = Math.max(1, getParameters().getExpectedBuilds().getOrElse(1));
+        this.freeJobs = this.maxJobs;
+    }
+
+    public int getMaxJobs() {
+        return maxJobs;
+    }
+
+    /**
+     * Waits for at least one job token, then takes as many more as are free, up to {@code desiredJobs} and this
+     * build's fair share of the budget. The budget is divided among every build waiting for or holding jobs, and the
+     * expected builds that haven't started yet, as a lease is held until its build finishes. No more builds than
+     * there are jobs can run at once, so those are never counted. A build that is the only one in the task graph
+     * gets the whole budget, while the first of several leaves jobs for the builds starting after it.
+     */
+    public Lease acquire(int desiredJobs) throws InterruptedException {
+        int wanted = Math.max(1, Math.min(desiredJobs, maxJobs));
+
+        synchronized (this) {
+            builds++;
+            startedBuilds++;
+            try {
+                while (freeJobs == 0) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                builds--;
+                notifyAll();
+                throw e;
+            }
+
+            int concurrentBuilds = Math.max(builds, Math.min(builds + Math.max(0, expectedBuilds - startedBuilds), maxJobs));
+            int share = Math.max(1, maxJobs / concurrentBuilds);
+            int acquired = Math.min(Math.min(wanted, share), freeJobs);
+            freeJobs -= acquired;
+            return new Lease(acquired);
+        }
+    }
+
+    private synchronized void release(int jobCount) {
+        freeJobs += jobCount;
+        builds--;
+        notifyAll();
+    }
+
+    /**
+     * A set of job tokens held by one CMake build, returned when it finishes.
+     */
+    public class Lease implements AutoCloseable {
+        private final int jobCount;
+        private boolean released;
+
+        private Lease(int jobCount) {
+            this.jobCount = jobCount;
+        }
+
+        public int getJobs() {
+            return jobCount;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!released) {
+                released = true;
+                release(jobCount);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package me.walkerknapp.usecmakelibrary.services;
+
+import me.walkerknapp.cfi.structs.CodeModel;
+import me.walkerknapp.usecmakelibrary.util.CMakeFileApi;
+import me.walkerknapp.usecmakelibrary.util.CMakeTargetReply;
+import me.walkerknapp.usecmakelibrary.util.Hashing;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the parsed codemodels and target replies of CMake build directories in memory, so that builds running in
+ * the same daemon don't read and parse the same replies again.
+ *
+ * A build directory's models are reused for as long as the reply index CMake wrote for it is unchanged, as CMake
+ * writes a new index on every configure. Build services only live as long as a single build, so the models are held
+ * in a table that outlives them, softly, so that they give way when the daemon is short on memory.
+ */
+public abstract class CMakeModelService implements BuildService<BuildServiceParameters.None> {
+    public static final String NAME = "cmakeModels";
+
+    private static final Map<Path, SoftReference<Models>> MODELS = new ConcurrentHashMap<>();
+
+    /**
+     * The codemodel of {@code buildDirectory}, read with {@code read} unless it is already in memory.
+     */
+    public CodeModel getCodeModel(Path buildDirectory, Supplier<CodeModel> read) {
+        Optional<String> index = replyIndexHash(buildDirectory);
+        if (index.isEmpty()) {
+            return read.get();
+        }
+
+        Models models = modelsFor(buildDirectory, index.get());
+        synchronized (models) {
+            if (models.codeModel == null) {
+                models.codeModel = read.get();
+            }
+            return models.codeModel;
+        }
+    }
+
+    /**
+     * Remembers a codemodel that was just produced by configuring {@code buildDirectory}.
+     */
+    public void putCodeModel(Path buildDirectory, CodeModel codeModel) {
+        replyIndexHash(buildDirectory).ifPresent(index -> {
+            Models models = modelsFor(buildDirectory, index);
+            synchronized (models) {
+                models.codeModel = codeModel;
+            }
+        });
+    }
+
+    /**
+     * The target replies of a configuration of {@code buildDirectory}, read with {@code read} unless they are already in memory.
+     */
+    public List<CMakeTargetReply> getTargets(Path buildDirectory, String configuration, Supplier<List<CMakeTargetReply>> read) {
+        Optional<String> index = replyIndexHash(buildDirectory);
+        if (index.isEmpty()) {
+            return read.get();
+        }
+
+        Models models = modelsFor(buildDirectory, index.get());
+        return models.targets.computeIfAbsent(configuration, c -> read.get());
+    }
+
+    private static Models modelsFor(Path buildDirectory, String index) {
+        // The models are held strongly here, so they can't be cleared before they are returned
+        Models[] current = new Models[1];
+        MODELS.compute(buildDirectory.toAbsolutePath().normalize(), (path, reference) -> {
+            Models models = reference != null ? reference.get() : null;
+            if (models == null || !models.index.equals(index)) {
+                models = new Models(index);
+                reference = new SoftReference<>(models);
+            }
+            current[0] = models;
+            return reference;
+        });
+        return current[0];
+    }
+
+    private static Optional<String> replyIndexHash(Path buildDirectory) {
+        Path replyDirectory = CMakeFileApi.replyDirectory(buildDirectory);
+        if (!Files.isDirectory(replyDirectory)) {
+            return Optional.empty();
+        }
+
+        // CMake removes the previous index once it writes a new one, so the newest name is the current index
+        Path index = null;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(replyDirectory, "index-*.json")) {
+            for (Path candidate : stream) {
+                if (index == null || candidate.getFileName().toString().compareTo(index.getFileName().toString()) > 0) {
+                    index = candidate;
+                }
+            }
+            if (index == null) {
+                return Optional.empty();
+            }
+
+            return Optional.of(Hashing.hash(index));
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static class Models {
+        private final String index;
+        private CodeModel codeModel;
+        private final Map<String, List<CMakeTargetReply>> targets = new ConcurrentHashMap<>();
+
+        private Models(String index) {
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package me.walkerknapp.usecmakelibrary.services;
+
+import com.dslplatform.json.DslJson;
+import com.dslplatform.json.runtime.Settings;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each phase of the CMake builds of a project takes, per build directory: configuring, waiting on
+ * the codemodel, reading replies, building and installing. When the build finishes, the phases are written to
+ * {@code build/reports/cmake/} as a Chrome trace ({@code trace.json}, viewable in chrome://tracing or Perfetto) and
+ * as totals per phase and build directory ({@code summary.json}).
+ */
+public abstract class CMakeTraceService implements BuildService<CMakeTraceService.Params>, AutoCloseable {
+    private static final Logger LOGGER = Logging.getLogger(CMakeTraceService.class);
+    private static final DslJson<Object> JSON = new DslJson<>(Settings.withRuntime().includeServiceLoader());
+
+    /**
+     * The name of the service for the project at {@code projectPath}, as each project reports into its own build directory.
+     */
+    public static String nameFor(String projectPath) {
+        return "cmakeTrace" + projectPath;
+    }
+
+    public interface Params extends BuildServiceParameters {
+        DirectoryProperty getReportDirectory();
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final long startMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    private final List<Event> events = new ArrayList<>();
+
+    /**
+     * Starts timing a phase, which is recorded once the returned span is closed.
+     */
+    public Span start(String phase, String directory) {
+        return new Span(phase, directory, System.nanoTime());
+    }
+
+    private synchronized void record(Event event) {
+        events.add(event);
+    }
+
+    @Override
+    public void close() {
+        List<Event> recorded;
+        synchronized (this) {
+            if (events.isEmpty()) {
+                return;
+            }
+            recorded = new ArrayList<>(events);
+        }
+
+        Path reportDirectory = getParameters().getReportDirectory().get().getAsFile().toPath();
+        try {
+            Files.createDirectories(reportDirectory);
+            writeJson(reportDirectory.resolve("trace.json"), trace(recorded));
+            writeJson(reportDirectory.resolve("summary.json"), summary(recorded));
+            LOGGER.info("Wrote CMake phase timings to {}", reportDirectory);
+        } catch (IOException e) {
+            LOGGER.warn("Could not write CMake phase timings to {}", reportDirectory, e);
+        }
+    }
+
+    private static void writeJson(Path file, Map<String, Object> value) throws IOException {
+        try (OutputStream output = Files.newOutputStream(file)) {
+            JSON.serialize(value, output);
+        }
+    }
+
+    private Map<String, Object> trace(List<Event> recorded) {
+        List<Map<String, Object>> traceEvents = new ArrayList<>();
+        for (Event event : recorded) {
+            Map<String, Object> traceEvent = new LinkedHashMap<>();
+            traceEvent.put("name", event.phase);
+            traceEvent.put("cat", event.directory);
+            traceEvent.put("ph", "X");
+            traceEvent.put("ts", startMicros + TimeUnit.NANOSECONDS.toMicros(event.startNanos - startNanos));
+            traceEvent.put("dur", TimeUnit.NANOSECONDS.toMicros(event.durationNanos));
+            traceEvent.put("pid", 1);
+            traceEvent.put("tid", event.thread);
+            traceEvent.put("args", event.args);
+            traceEvents.add(traceEvent);
+        }
+
+        Map<String, Object> trace = new LinkedHashMap<>();
+        trace.put("traceEvents", traceEvents);
+        trace.put("displayTimeUnit", "ms");
+        return trace;
+    }
+
+    private static Map<String, Object> summary(List<Event> recorded) {
+        // Totals per build directory and phase, with numeric arguments (such as target counts and bytes) summed
+        Map<String, Map<String, Summary>> summaries = new LinkedHashMap<>();
+        for (Event event : recorded) {
+            Summary summary = summaries.computeIfAbsent(event.directory, d -> new LinkedHashMap<>())
+                    .computeIfAbsent(event.phase, p -> new Summary());
+            summary.count++;
+            summary.durationNanos += event.durationNanos;
+            event.args.forEach((key, value) -> {
+                if (value instanceof Number) {
+                    summary.totals.merge(key, ((Number) value).longValue(), Long::sum);
+                }
+            });
+        }
+
+        Map<String, Object> directories = new LinkedHashMap<>();
+        summaries.forEach((directory, phases) -> {
+            Map<String, Object> phaseValues = new LinkedHashMap<>();
+            phases.forEach((phase, summary) -> {
+                Map<String, Object> values = new LinkedHashMap<>();
+                values.put("count", summary.count);
+                values.put("totalMillis", TimeUnit.NANOSECONDS.toMillis(summary.durationNanos));
+                values.putAll(summary.totals);
+                phaseValues.put(phase, values);
+            });
+            directories.put(directory, phaseValues);
+        });
+        return directories;
+    }
+
+    private static class Event {
+        private final String phase;
+        private final String directory;
+        private final String thread;
+        private final long startNanos;
+        private final long durationNanos;
+        private final Map<String, Object> args;
+
+        private Event(String phase, String directory, String thread, long startNanos, long durationNanos, Map<String, Object> args) {
+            this.phase = phase;
+            this.directory = directory;
+            this.thread = thread;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+            this.args = args;
+        }
+    }
+
+    private static class Summary {
+        private int count;
+        private long durationNanos;
+        private final Map<String, Long> totals = new LinkedHashMap<>();
+    }
+
+    /**
+     * A phase being timed, recorded along with any arguments given to it when closed.
+     */
+    public class Span implements AutoCloseable {
+        private final String phase;
+        private final String directory;
+        private final long startNanos;
+        private final Map<String, Object> args = new LinkedHashMap<>();
+        private boolean closed;
+
+        private Span(String phase, String directory, long startNanos) {
+            this.phase = phase;
+            this.directory = directory;
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * Attaches an argument to the phase, such as a count or a size. Numeric arguments are summed in the summary.
+         */
+        public Span arg(String name, Object value) {
+            // Anything other than numbers and booleans is reported as its string form
+            args.put(name, value instanceof Number || value instanceof Boolean ? value : String.valueOf(value));
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            record(new Event(phase, directory, Thread.currentThread().getName(), startNanos, System.nanoTime() - startNanos, args));
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package me.walkerknapp.usecmakelibrary.tasks;
+
+import me.walkerknapp.usecmakelibrary.util.CMakeBuildTimings;
+import me.walkerknapp.usecmakelibrary.util.CMakeTargetReply;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Reports where the time of the last native build of a CMake build directory went: the slowest translation units, the
+ * time spent in each target, the chain of target dependencies that bounds the build however many jobs it is given,
+ * and how well the build kept its jobs busy.
+ *
+ * The report is read from the build's own step log, so it describes whichever build last ran in the directory.
+ */
+public class CMakeBuildReportTask extends DefaultTask {
+    private final DirectoryProperty cmakeFiles;
+    private final Property<String> configuration;
+    private final ListProperty<String> targetReplies;
+    private final Property<Integer> slowestCount;
+    private final RegularFileProperty reportFile;
+
+    @Inject
+    public CMakeBuildReportTask(ObjectFactory objectFactory) {
+        this.cmakeFiles = objectFactory.directoryProperty();
+        this.configuration = objectFactory.property(String.class);
+        this.targetReplies = objectFactory.listProperty(String.class);
+        this.slowestCount = objectFactory.property(Integer.class).convention(20);
+        this.reportFile = objectFactory.fileProperty();
+
+        // The step log changes with every build, and isn't tracked as an input
+        getOutputs().upToDateWhen(task -> false);
+    }
+
+    @TaskAction
+    public void report() {
+        Path buildDirectory = this.cmakeFiles.get().getAsFile().toPath();
+        Optional<CMakeBuildTimings> read = CMakeBuildTimings.read(buildDirectory, this.configuration.get());
+        if (read.isEmpty()) {
+            getLogger().lifecycle("No build timings were found in {}. Makefile builds only record them with cmake.recordBuildTimings enabled.", buildDirectory);
+            return;
+        }
+        CMakeBuildTimings timings = read.get();
+
+        List<CMakeTargetReply> targets = CMakeTargetReply.readAll(buildDirectory, this.targetReplies.get());
+        Map<String, String> artifactTargets = new HashMap<>();
+        Map<String, CMakeTargetReply> targetsByName = new LinkedHashMap<>();
+        for (CMakeTargetReply target : targets) {
+            targetsByName.put(target.name, target);
+            if (target.artifacts != null) {
+                for (CMakeTargetReply.Artifact artifact : target.artifacts) {
+                    artifactTargets.put(artifact.path.replace('\\', '/'), target.name);
+                }
+            }
+        }
+        Map<String, List<CMakeBuildTimings.Step>> byTarget = timings.byTarget(artifactTargets, targetsByName.keySet());
+
+        List<String> lines = new ArrayList<>();
+        lines.add("CMake build report for " + buildDirectory);
+        lines.add("");
+
+        long wall = timings.getWallMillis();
+        long total = timings.getTotalMillis();
+        double averageParallelism = wall > 0 ? (double) total / wall : 0;
+        lines.add(String.format("Wall time: %s, step time: %s across %d steps", seconds(wall), seconds(total), timings.getSteps().size()));
+        String parallelismLine = String.format("Parallelism: %.1f on average, %d at peak", averageParallelism, timings.getPeakConcurrency());
+        if (timings.getParallelism().isPresent()) {
+            int jobs = timings.getParallelism().get();
+            parallelismLine += String.format(", with %d jobs (%.0f%% utilization)", jobs, 100 * averageParallelism / jobs);
+        }
+        lines.add(parallelismLine);
+
+        List<String> criticalPath = criticalPath(targetsByName, byTarget);
+        long criticalMillis = criticalPath.stream().mapToLong(name -> targetCost(byTarget.getOrDefault(name, List.of()))).sum();
+        lines.add(String.format("Critical path: %s (%.0f%% of wall time)", seconds(criticalMillis), wall > 0 ? 100.0 * criticalMillis / wall : 0));
+        lines.add("  " + criticalPath.stream()
+                .map(name -> name + " (" + seconds(targetCost(byTarget.getOrDefault(name, List.of()))) + ")")
+                .collect(Collectors.joining(" -> ")));
+        lines.add("");
+
+        lines.add("Slowest translation units:");
+        byTarget.entrySet().stream()
+                .flatMap(entry -> entry.getValue().stream()
+                        .filter(CMakeBuildTimings::isCompile)
+                        .map(step -> Map.entry(entry.getKey(), step)))
+                .sorted(Comparator.comparingLong((Map.Entry<String, CMakeBuildTimings.Step> entry) -> entry.getValue().getMillis()).reversed())
+                .limit(this.slowestCount.get())
+                .forEach(entry -> lines.add(String.format("  %10s  %-24s %s", seconds(entry.getValue().getMillis()),
+                        displayName(entry.getKey()), sourceOf(targetsByName.get(entry.getKey()), entry.getValue()))));
+        lines.add("");
+
+        lines.add("Targets:");
+        lines.add(String.format("  %10s  %10s  %10s  %6s  %s", "total", "compile", "other", "steps", "target"));
+        byTarget.entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<String, List<CMakeBuildTimings.Step>> entry) -> sum(entry.getValue(), true) + sum(entry.getValue(), false)).reversed())
+                .forEach(entry -> {
+                    long compile = sum(entry.getValue(), true);
+                    long other = sum(entry.getValue(), false);
+                    lines.add(String.format("  %10s  %10s  %10s  %6d  %s", seconds(compile + other), seconds(compile), seconds(other),
+                            entry.getValue().size(), displayName(entry.getKey())));
+                });
+
+        Path report = this.reportFile.get().getAsFile().toPath();
+        try {
+            Files.createDirectories(report.getParent());
+            Files.write(report, lines, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write build report " + report, e);
+        }
+
+        getLogger().lifecycle("{}, {}; critical path {}. See {}", lines.get(2), lines.get(3), seconds(criticalMillis), report);
+    }
+
+    /**
+     * The longest chain of target dependencies, where each target costs its slowest compile plus its links and other
+     * steps. This is what the build would take with unlimited jobs, if targets waited for their dependencies.
+     */
+    private static List<String> criticalPath(Map<String, CMakeTargetReply> targetsByName, Map<String, List<CMakeBuildTimings.Step>> byTarget) {
+        Map<String, String> namesById = new HashMap<>();
+        targetsByName.values().forEach(target -> namesById.put(target.id, target.name));
+
+        Map<String, Long> finish = new HashMap<>();
+        Map<String, String> slowestDependency = new HashMap<>();
+        Set<String> visiting = new HashSet<>();
+        String last = null;
+        for (String name : targetsByName.keySet()) {
+            long time = finishTime(name, targetsByName, namesById, byTarget, finish, slowestDependency, visiting);
+            if (last == null || time > finish.get(last)) {
+                last = name;
+            }
+        }
+
+        List<String> path = new ArrayList<>();
+        for (String name = last; name != null; name = slowestDependency.get(name)) {
+            path.add(0, name);
+        }
+        return path;
+    }
+
+    private static long finishTime(String name, Map<String, CMakeTargetReply> targetsByName, Map<String, String> namesById,
+                                   Map<String, List<CMakeBuildTimings.Step>> byTarget, Map<String, Long> finish,
+                                   Map<String, String> slowestDependency, Set<String> visiting) {
+        Long known = finish.get(name);
+        if (known != null) {
+            return known;
+        }
+        // Static libraries may depend on each other in cycles, which are cut where they are found
+        if (!visiting.add(name)) {
+            return 0;
+        }
+
+        long start = 0;
+        CMakeTargetReply target = targetsByName.get(name);
+        if (target.dependencies != null) {
+            for (CMakeTargetReply.Dependency dependency : target.dependencies) {
+                String dependencyName = namesById.get(dependency.id);
+                if (dependencyName == null) {
+                    continue;
+                }
+                long dependencyFinish = finishTime(dependencyName, targetsByName, namesById, byTarget, finish, slowestDependency, visiting);
+                if (dependencyFinish > start) {
+                    start = dependencyFinish;
+                    slowestDependency.put(name, dependencyName);
+                }
+            }
+        }
+        visiting.remove(name);
+
+        long time = start + targetCost(byTarget.getOrDefault(name, List.of()));
+        finish.put(name, time);
+        return time;
+    }
+
+    private static long targetCost(List<CMakeBuildTimings.Step> steps) {
+        long slowestCompile = steps.stream().filter(CMakeBuildTimings::isCompile).mapToLong(CMakeBuildTimings.Step::getMillis).max().orElse(0);
+        return slowestCompile + sum(steps, false);
+    }
+
+    private static long sum(List<CMakeBuildTimings.Step> steps, boolean compiles) {
+        return steps.stream()
+                .filter(step -> CMakeBuildTimings.isCompile(step) == compiles)
+                .mapToLong(CMakeBuildTimings.Step::getMillis)
+                .sum();
+    }
+
+    private static String sourceOf(CMakeTargetReply target, CMakeBuildTimings.Step step) {
+        String source = CMakeBuildTimings.sourceOf(step);
+        if (target != null && target.sources != null) {
+            for (CMakeTargetReply.Source candidate : target.sources) {
+                if (candidate.path.equals(source) || candidate.path.endsWith("/" + source)) {
+                    return candidate.path;
+                }
+            }
+        }
+        return source;
+    }
+
+    private static String displayName(String target) {
+        return target.isEmpty() ? "(no target)" : target;
+    }
+
+    private static String seconds(long millis) {
+        return String.format("%.2fs", millis / 1000.0);
+    }
+
+    /**
+     * The CMake build directory whose last build is reported.
+     */
+    @Internal
+    public DirectoryProperty getCmakeFiles() {
+        return this.cmakeFiles;
+    }
+
+    /**
+     * The CMake configuration whose last build is reported, as build directories of multi-config generators hold
+     * the builds of several.
+     */
+    @Internal
+    public Property<String> getConfiguration() {
+        return this.configuration;
+    }
+
+    /**
+     * The reply files of the targets of the configuration that was built, relative to the build directory's reply
+     * directory, which steps are attributed to.
+     */
+    @Internal
+    public ListProperty<String> getTargetReplies() {
+        return this.targetReplies;
+    }
+
+    /**
+     * How many of the slowest translation units to list.
+     */
+    @Internal
+    public Property<Integer> getSlowestCount() {
+        return this.slowestCount;
+    }
+
+    @OutputFile
+    public RegularFileProperty getReportFile() {
+        return this.reportFile;
+    }
+}
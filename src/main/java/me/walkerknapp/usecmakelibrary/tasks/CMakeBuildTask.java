@@ -1,42 +1,244 @@
 package me.walkerknapp.usecmakelibrary.tasks;
 
+import me.walkerknapp.usecmakelibrary.services.CMakeJobService;
+import me.walkerknapp.usecmakelibrary.services.CMakeTraceService;
+import me.walkerknapp.usecmakelibrary.util.ProfileGuidedOptimization;
 import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
 import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.*;
+import org.gradle.workers.WorkerExecutor;
+
+import javax.inject.Inject;
 
 @CacheableTask
 public class CMakeBuildTask extends DefaultTask {
-    private String buildType;
+    private final Property<String> buildType;
     private final DirectoryProperty cmakeFiles;
+    private final ConfigurableFileCollection sources;
+    private final Property<String> configureFingerprint;
+    private final ConfigurableFileCollection artifacts;
+    private final Property<String> cmakeExecutable;
+    private final Property<Boolean> sharedBuildDirectory;
+    private final DirectoryProperty syncedSourceDirectory;
+    private final ConfigurableFileCollection syncExcludedDirectories;
+    private final Property<CMakeTraceService> traceService;
+    private final Property<String> traceName;
+    private final ListProperty<String> configureCommandLine;
+    private final ListProperty<String> targets;
+    private final Property<CMakeJobService> jobService;
+    private final Property<String> compilerLauncher;
+    private final MapProperty<String, String> compilerLauncherEnvironment;
+    private final DirectoryProperty profileDirectory;
+
+    private final WorkerExecutor workerExecutor;
 
-    public CMakeBuildTask() {
-        this.cmakeFiles = getProject().getObjects().directoryProperty();
+    @Inject
+    public CMakeBuildTask(ObjectFactory objectFactory, WorkerExecutor workerExecutor) {
+        this.buildType = objectFactory.property(String.class);
+        this.cmakeFiles = objectFactory.directoryProperty();
+        this.sources = objectFactory.fileCollection();
+        this.configureFingerprint = objectFactory.property(String.class);
+        this.artifacts = objectFactory.fileCollection();
+        this.cmakeExecutable = objectFactory.property(String.class).convention("cmake");
+        this.sharedBuildDirectory = objectFactory.property(Boolean.class).convention(false);
+        this.syncedSourceDirectory = objectFactory.directoryProperty();
+        this.syncExcludedDirectories = objectFactory.fileCollection();
+        this.traceService = objectFactory.property(CMakeTraceService.class);
+        this.traceName = objectFactory.property(String.class).convention(getName());
+        this.configureCommandLine = objectFactory.listProperty(String.class);
+        this.targets = objectFactory.listProperty(String.class);
+        this.jobService = objectFactory.property(CMakeJobService.class);
+        this.compilerLauncher = objectFactory.property(String.class);
+        this.compilerLauncherEnvironment = objectFactory.mapProperty(String.class, String.class);
+        this.profileDirectory = objectFactory.directoryProperty();
+        this.workerExecutor = workerExecutor;
     }
 
     @TaskAction
     public void buildCmakeProject() {
-        String cmakeExecutable = System.getenv().getOrDefault("CMAKE_EXECUTABLE", "cmake");
+        // Lazily configured builds may not have been generated yet, in which case we generate them first
+        boolean generated = this.cmakeFiles.file("CMakeCache.txt").get().getAsFile().isFile();
+
+        // CMake doesn't know objects depend on the profile data they were optimized with, so new profile data means compiling everything again
+        String profileStamp = this.profileDirectory.isPresent()
+                ? ProfileGuidedOptimization.stamp(this.profileDirectory.get().getAsFile().toPath())
+                : null;
+        boolean cleanFirst = profileStamp != null && ProfileGuidedOptimization.isProfileChanged(this.cmakeFiles.get().getAsFile().toPath(), profileStamp);
 
-        getProject().exec(execSpec -> {
-            execSpec.setWorkingDir(this.cmakeFiles.getAsFile().get());
-            execSpec.commandLine(cmakeExecutable,
+        // Builds of other variants can run alongside this one while the work is in progress
+        workerExecutor.noIsolation().submit(CMakeExecAction.class, parameters -> {
+            if (!generated) {
+                parameters.getConfigureCommandLine().set(this.configureCommandLine);
+            }
+            parameters.getCommandLine().addAll(this.cmakeExecutable.get(),
                     "--build", this.cmakeFiles.get().getAsFile().getAbsolutePath(),
-                    "--config", this.buildType);
+                    "--config", this.buildType.get());
+            if (cleanFirst) {
+                parameters.getCommandLine().add("--clean-first");
+            }
+            if (!this.targets.get().isEmpty()) {
+                parameters.getCommandLine().add("--target");
+                parameters.getCommandLine().addAll(this.targets);
+            }
+            parameters.getWorkingDirectory().set(this.cmakeFiles);
+            parameters.getJobService().set(this.jobService);
+            parameters.getCompilerLauncher().set(this.compilerLauncher);
+            parameters.getEnvironment().putAll(this.compilerLauncherEnvironment);
+            if (this.sharedBuildDirectory.get()) {
+                parameters.getLockedDirectory().set(this.cmakeFiles);
+                parameters.getSyncedSourceDirectory().set(this.syncedSourceDirectory);
+                parameters.getSyncExcludedDirectories().from(this.syncExcludedDirectories);
+            }
+            parameters.getTraceService().set(this.traceService);
+            parameters.getTraceName().set(this.traceName);
+            parameters.getPhase().set(CMakeExecAction.BUILD_PHASE);
+            if (profileStamp != null) {
+                parameters.getProfileStamp().set(profileStamp);
+            }
         });
     }
 
+    /**
+     * The name of the configuration to build, as CMake reported it. Multi-config generators name their build files
+     * after it, so it has to match their case exactly.
+     */
+    @Input
+    public Property<String> getBuildType() {
+        return this.buildType;
+    }
+
+    /**
+     * The CMake build directory. It is not an input itself, as it is also where the build writes its intermediate
+     * files; the build's inputs are described by {@link #getSources()} and {@link #getConfigureFingerprint()} instead.
+     */
+    @Internal
+    public DirectoryProperty getCmakeFiles() {
+        return this.cmakeFiles;
+    }
+
+    /**
+     * The source files and headers of the targets being built, along with the CMake files that describe them.
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public ConfigurableFileCollection getSources() {
+        return this.sources;
+    }
+
+    /**
+     * The fingerprint of the configure that generated the build directory.
+     */
+    @Input
+    @Optional
+    public Property<String> getConfigureFingerprint() {
+        return this.configureFingerprint;
+    }
+
+    /**
+     * The files produced by the targets being built.
+     */
+    @OutputFiles
+    public ConfigurableFileCollection getArtifacts() {
+        return this.artifacts;
+    }
+
     @Input
-    public String getBuildType() {
-        return buildType;
+    public Property<String> getCmakeExecutable() {
+        return this.cmakeExecutable;
+    }
+
+    /**
+     * Whether {@link #getCmakeFiles()} is shared with other projects and checkouts, and so must be locked while in use.
+     */
+    @Internal
+    public Property<Boolean> getSharedBuildDirectory() {
+        return this.sharedBuildDirectory;
     }
 
-    public void setBuildType(String buildType) {
-        this.buildType = buildType;
+    /**
+     * The checkout that the shared build directory's copy of the sources is synced from before cmake runs, if any.
+     * Its files are tracked through {@link #getSources()}.
+     */
+    @Internal
+    public DirectoryProperty getSyncedSourceDirectory() {
+        return this.syncedSourceDirectory;
     }
 
+    /**
+     * The directories of {@link #getSyncedSourceDirectory()} that are not synced, being the build directories of every project.
+     */
+    @Internal
+    public ConfigurableFileCollection getSyncExcludedDirectories() {
+        return this.syncExcludedDirectories;
+    }
+
+    /**
+     * The service the phases of this task are timed by, if any.
+     */
+    @Internal
+    public Property<CMakeTraceService> getTraceService() {
+        return this.traceService;
+    }
+
+    /**
+     * The name the phases of this task are timed under, defaulting to the task's name.
+     */
+    @Internal
+    public Property<String> getTraceName() {
+        return this.traceName;
+    }
+
+    /**
+     * The merged profile data the build is optimized with, if it is the optimized build of profile-guided optimization.
+     * The profile data is already part of the build's configuration, so this only tracks its contents.
+     */
     @InputDirectory
     @PathSensitive(PathSensitivity.RELATIVE)
-    public DirectoryProperty getCmakeFiles() {
-        return this.cmakeFiles;
+    @Optional
+    public DirectoryProperty getProfileDirectory() {
+        return this.profileDirectory;
+    }
+
+    /**
+     * The CMake targets to build. If empty, every target in the project is built.
+     */
+    @Input
+    public ListProperty<String> getTargets() {
+        return this.targets;
+    }
+
+    /**
+     * The command that generates this build, run before building if the build directory has not been generated yet.
+     */
+    @Internal
+    public ListProperty<String> getConfigureCommandLine() {
+        return this.configureCommandLine;
+    }
+
+    @Internal
+    public Property<CMakeJobService> getJobService() {
+        return this.jobService;
+    }
+
+    /**
+     * The compiler launcher the build was configured with, if any, whose cache statistics are reported after building.
+     */
+    @Internal
+    public Property<String> getCompilerLauncher() {
+        return this.compilerLauncher;
+    }
+
+    /**
+     * The environment that configures the compiler launcher's cache. The launcher only changes how objects are
+     * produced, not what they contain, so this is not an input.
+     */
+    @Internal
+    public MapProperty<String, String> getCompilerLauncherEnvironment() {
+        return this.compilerLauncherEnvironment;
     }
 }
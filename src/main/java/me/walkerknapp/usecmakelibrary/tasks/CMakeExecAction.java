@@ -0,0 +1,258 @@
+package me.walkerknapp.usecmakelibrary.tasks;
+
+import me.walkerknapp.usecmakelibrary.services.CMakeJobService;
+import me.walkerknapp.usecmakelibrary.services.CMakeTraceService;
+import me.walkerknapp.usecmakelibrary.util.CMakeBuildTimings;
+import me.walkerknapp.usecmakelibrary.util.CompilerLauncher;
+import me.walkerknapp.usecmakelibrary.util.FileLinks;
+import me.walkerknapp.usecmakelibrary.util.ProfileGuidedOptimization;
+import me.walkerknapp.usecmakelibrary.util.SharedBuildCache;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.process.ExecOperations;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs a single cmake invocation for {@link CMakeBuildTask} or {@link CMakeInstallTask}.
+ */
+public abstract class CMakeExecAction implements WorkAction<CMakeExecAction.Parameters> {
+    public interface Parameters extends WorkParameters {
+        /**
+         * If not empty, a configure command to run before {@link #getCommandLine()}, for builds that were not generated yet.
+         */
+        ListProperty<String> getConfigureCommandLine();
+
+        ListProperty<String> getCommandLine();
+
+        DirectoryProperty getWorkingDirectory();
+
+        /**
+         * If present, a share of this service's job budget is taken and passed to cmake as {@code --parallel}.
+         */
+        Property<CMakeJobService> getJobService();
+
+        /**
+         * If present, cmake is asked to install by symbolic link, and the links under this directory are
+         * then turned into hard links (or copies, where linking isn't possible) once it is done.
+         */
+        DirectoryProperty getLinkedInstallDirectory();
+
+        /**
+         * The trees a linked install links into, being the build and source directories. Only links into these are
+         * materialized, others in the install directory are kept.
+         */
+        ConfigurableFileCollection getLinkedTrees();
+
+        /**
+         * If present, a shared build directory that is locked against other builds, in this process or any other,
+         * while cmake runs. It is marked as used, so other processes cleaning up the shared cache evict it last.
+         */
+        DirectoryProperty getLockedDirectory();
+
+        /**
+         * If present, the checkout that the sources of {@link #getLockedDirectory()} are synced from once it is locked,
+         * as another checkout may have built from them since this one was configured.
+         */
+        DirectoryProperty getSyncedSourceDirectory();
+
+        /**
+         * The directories of {@link #getSyncedSourceDirectory()} that are not synced.
+         */
+        ConfigurableFileCollection getSyncExcludedDirectories();
+
+        /**
+         * Extra environment for every cmake invocation.
+         */
+        MapProperty<String, String> getEnvironment();
+
+        /**
+         * If present, the compiler launcher used by the build, whose hit and miss counts are reported once it is done.
+         */
+        Property<String> getCompilerLauncher();
+
+        /**
+         * If present, the service the phases of this invocation are timed by.
+         */
+        Property<CMakeTraceService> getTraceService();
+
+        /**
+         * The name this invocation's phases are timed under, usually the build directory's.
+         */
+        Property<String> getTraceName();
+
+        /**
+         * The phase this invocation is timed as, either {@link #BUILD_PHASE} or {@link #INSTALL_PHASE}.
+         */
+        Property<String> getPhase();
+
+        /**
+         * If present, the stamp of the profile data the build is optimized with, recorded once the build succeeds.
+         */
+        Property<String> getProfileStamp();
+    }
+
+    public static final String BUILD_PHASE = "build";
+    public static final String INSTALL_PHASE = "install";
+
+    private static final Logger LOGGER = Logging.getLogger(CMakeExecAction.class);
+
+    private final ExecOperations execOperations;
+
+    @Inject
+    public CMakeExecAction(ExecOperations execOperations) {
+        this.execOperations = execOperations;
+    }
+
+    @Override
+    public void execute() {
+        if (getParameters().getLockedDirectory().isPresent()) {
+            Path lockedDirectory = getParameters().getLockedDirectory().get().getAsFile().toPath();
+            try (SharedBuildCache.Lock lock = SharedBuildCache.lock(lockedDirectory)) {
+                SharedBuildCache.markUsed(lockedDirectory);
+                if (getParameters().getSyncedSourceDirectory().isPresent()) {
+                    try (CMakeTraceService.Span span = startSpan("sync sources")) {
+                        SharedBuildCache.syncSources(execOperations, getParameters().getSyncedSourceDirectory().get().getAsFile().toPath(),
+                                getParameters().getSyncExcludedDirectories().getFiles().stream().map(File::toPath).collect(Collectors.toList()),
+                                lockedDirectory);
+                    }
+                }
+                run();
+            }
+        } else {
+            run();
+        }
+    }
+
+    private void run() {
+        if (!getParameters().getConfigureCommandLine().get().isEmpty()) {
+            try (CMakeTraceService.Span span = startSpan("cmake configure")) {
+                exec(getParameters().getConfigureCommandLine().get());
+            }
+        }
+
+        List<String> commandLine = new ArrayList<>(getParameters().getCommandLine().get());
+        String phase = getParameters().getPhase().getOrElse("cmake");
+
+        if (getParameters().getLinkedInstallDirectory().isPresent()) {
+            try (CMakeTraceService.Span span = startSpan(phase)) {
+                // CMAKE_INSTALL_MODE needs CMake 3.22, older versions ignore it and copy as usual
+                exec(commandLine, Map.of("CMAKE_INSTALL_MODE", "ABS_SYMLINK_OR_COPY"));
+                FileLinks.materializeSymbolicLinks(getParameters().getLinkedInstallDirectory().get().getAsFile().toPath(),
+                        getParameters().getLinkedTrees().getFiles().stream().map(File::toPath).collect(Collectors.toList()));
+                recordInstalledBytes(span, phase);
+            }
+            return;
+        }
+
+        Optional<CompilerLauncher.Stats> statsBefore = readLauncherStats();
+
+        if (!getParameters().getJobService().isPresent()) {
+            try (CMakeTraceService.Span span = startSpan(phase)) {
+                exec(commandLine, timingEnvironment(phase, null));
+                recordInstalledBytes(span, phase);
+            }
+        } else {
+            // Take our share of the build-wide job budget, and hand it back once the native build is done
+            CMakeJobService service = getParameters().getJobService().get();
+            CMakeJobService.Lease lease;
+            try (CMakeTraceService.Span span = startSpan("wait for jobs")) {
+                lease = service.acquire(service.getMaxJobs());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GradleException("Interrupted while waiting for CMake build jobs.", e);
+            }
+            try (lease; CMakeTraceService.Span span = startSpan(phase)) {
+                commandLine.addAll(List.of("--parallel", String.valueOf(lease.getJobs())));
+                if (span != null) {
+                    span.arg("jobs", lease.getJobs());
+                }
+                exec(commandLine, timingEnvironment(phase, lease.getJobs()));
+            }
+        }
+
+        if (getParameters().getProfileStamp().isPresent()) {
+            ProfileGuidedOptimization.recordProfile(getParameters().getWorkingDirectory().get().getAsFile().toPath(),
+                    getParameters().getProfileStamp().get());
+        }
+
+        // The launcher's counters are global to its cache, so builds sharing it at the same time are counted together
+        statsBefore.ifPresent(before -> readLauncherStats().ifPresent(after -> {
+            CompilerLauncher.Stats stats = after.since(before);
+            long total = stats.getHits() + stats.getMisses();
+            LOGGER.lifecycle("Compiler launcher: {} hits, {} misses{} building {}", stats.getHits(), stats.getMisses(),
+                    total > 0 ? " (" + (100 * stats.getHits() / total) + "% hit rate)" : "",
+                    getParameters().getWorkingDirectory().get().getAsFile());
+        }));
+    }
+
+    @Nullable
+    private CMakeTraceService.Span startSpan(String phase) {
+        if (!getParameters().getTraceService().isPresent()) {
+            return null;
+        }
+        return getParameters().getTraceService().get().start(phase, getParameters().getTraceName().getOrElse("cmake"));
+    }
+
+    /**
+     * Starts the step timings of a build afresh, and points the timing launcher at the log, if the build uses it.
+     */
+    private Map<String, String> timingEnvironment(String phase, @Nullable Integer jobs) {
+        if (!phase.equals(BUILD_PHASE)) {
+            return Map.of();
+        }
+        Path buildDirectory = getParameters().getWorkingDirectory().get().getAsFile().toPath();
+        CMakeBuildTimings.startBuild(buildDirectory, jobs);
+        return Map.of(CMakeBuildTimings.LOG_ENVIRONMENT_VARIABLE, CMakeBuildTimings.launcherLog(buildDirectory).toAbsolutePath().toString());
+    }
+
+    private void recordInstalledBytes(@Nullable CMakeTraceService.Span span, String phase) {
+        if (span == null || !phase.equals(INSTALL_PHASE)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(getParameters().getWorkingDirectory().get().getAsFile().toPath())) {
+            span.arg("bytesInstalled", files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum());
+        } catch (IOException e) {
+            LOGGER.debug("Could not measure installed files", e);
+        }
+    }
+
+    private Optional<CompilerLauncher.Stats> readLauncherStats() {
+        if (!getParameters().getCompilerLauncher().isPresent()) {
+            return Optional.empty();
+        }
+        return CompilerLauncher.readStats(execOperations, getParameters().getCompilerLauncher().get(), getParameters().getEnvironment().get());
+    }
+
+    private void exec(List<String> commandLine) {
+        exec(commandLine, Map.of());
+    }
+
+    private void exec(List<String> commandLine, Map<String, String> environment) {
+        execOperations.exec(execSpec -> {
+            execSpec.setWorkingDir(getParameters().getWorkingDirectory().get().getAsFile());
+            execSpec.environment(getParameters().getEnvironment().get());
+            execSpec.environment(environment);
+            execSpec.commandLine(commandLine);
+        });
+    }
+}
@@ -1,121 +1,311 @@
 package me.walkerknapp.usecmakelibrary.tasks;
 
+import me.walkerknapp.usecmakelibrary.services.CMakeTraceService;
 import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
 import org.gradle.api.file.Directory;
 import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.FileCollection;
-import org.gradle.api.internal.provider.Providers;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
 import org.gradle.api.provider.Provider;
 import org.gradle.api.tasks.*;
+import org.gradle.workers.WorkQueue;
+import org.gradle.workers.WorkerExecutor;
 
+import javax.annotation.Nullable;
+import javax.inject.Inject;
 import java.io.File;
+import java.util.Collections;
+import java.util.List;
 
 @CacheableTask
 public class CMakeInstallTask extends DefaultTask {
-    private String buildType;
+    /**
+     * How installed files are materialized in the install prefix.
+     */
+    public enum InstallMode {
+        /**
+         * Files are copied from the build tree, as {@code cmake --install} normally does.
+         */
+        COPY,
+        /**
+         * Files are hard linked to the build tree, falling back to copies where linking isn't possible.
+         */
+        LINK
+    }
+
+    private final Property<String> buildType;
     private final DirectoryProperty cmakeFiles;
+    private final DirectoryProperty sourceDirectory;
+    private final DirectoryProperty installDirectory;
+    private final ConfigurableFileCollection sources;
+    private final Property<String> configureFingerprint;
+    private final ConfigurableFileCollection artifacts;
+    private final Property<String> cmakeExecutable;
+    private final Property<Boolean> sharedBuildDirectory;
+    private final DirectoryProperty syncedSourceDirectory;
+    private final ConfigurableFileCollection syncExcludedDirectories;
+    private final Property<CMakeTraceService> traceService;
+    private final Property<String> traceName;
+    private final Property<InstallMode> installMode;
+    private final ListProperty<String> components;
+
+    private final ObjectFactory objectFactory;
+    private final WorkerExecutor workerExecutor;
 
-    public CMakeInstallTask() {
-        this.cmakeFiles = getProject().getObjects().directoryProperty();
+    @Inject
+    public CMakeInstallTask(ObjectFactory objectFactory, WorkerExecutor workerExecutor) {
+        this.buildType = objectFactory.property(String.class);
+        this.cmakeFiles = objectFactory.directoryProperty();
+        this.sourceDirectory = objectFactory.directoryProperty();
+        this.installDirectory = objectFactory.directoryProperty();
+        this.sources = objectFactory.fileCollection();
+        this.configureFingerprint = objectFactory.property(String.class);
+        this.artifacts = objectFactory.fileCollection();
+        this.cmakeExecutable = objectFactory.property(String.class).convention("cmake");
+        this.sharedBuildDirectory = objectFactory.property(Boolean.class).convention(false);
+        this.syncedSourceDirectory = objectFactory.directoryProperty();
+        this.syncExcludedDirectories = objectFactory.fileCollection();
+        this.traceService = objectFactory.property(CMakeTraceService.class);
+        this.traceName = objectFactory.property(String.class).convention(getName());
+        this.installMode = objectFactory.property(InstallMode.class).convention(InstallMode.COPY);
+        this.components = objectFactory.listProperty(String.class);
+        this.objectFactory = objectFactory;
+        this.workerExecutor = workerExecutor;
     }
 
     @TaskAction
     public void installCmakeProject() {
-        String cmakeExecutable = System.getenv().getOrDefault("CMAKE_EXECUTABLE", "cmake");
+        // The prefix is kept between runs, so cmake --install can skip files that are already up-to-date.
+        // The directories consumers use are created up front, as a project may not install anything into them.
+        for (String folder : List.of("bin", "lib", "include")) {
+            this.getOutputDirectory().toPath().resolve(folder).toFile().mkdirs();
+        }
+
+        // cmake --install takes a single component, so each is installed in turn into the same prefix
+        List<String> components = this.components.get().isEmpty() ? Collections.singletonList(null) : this.components.get();
+        WorkQueue workQueue = workerExecutor.noIsolation();
+        for (String component : components) {
+            install(workQueue, component);
+            workQueue.await();
+        }
+    }
 
-        getProject().exec(execSpec -> {
-            execSpec.setWorkingDir(getOutputDirectory());
-            execSpec.commandLine(cmakeExecutable,
+    private void install(WorkQueue workQueue, @Nullable String component) {
+        workQueue.submit(CMakeExecAction.class, parameters -> {
+            parameters.getCommandLine().addAll(this.cmakeExecutable.get(),
                     "--install", this.cmakeFiles.get().getAsFile().getAbsolutePath(),
-                    "--config", this.buildType,
+                    "--config", this.buildType.get(),
                     "--prefix", this.getOutputDirectory().getAbsolutePath());
+            if (component != null) {
+                parameters.getCommandLine().addAll("--component", component);
+            }
+            parameters.getWorkingDirectory().fileValue(getOutputDirectory());
+            if (this.sharedBuildDirectory.get()) {
+                parameters.getLockedDirectory().set(this.cmakeFiles);
+                parameters.getSyncedSourceDirectory().set(this.syncedSourceDirectory);
+                parameters.getSyncExcludedDirectories().from(this.syncExcludedDirectories);
+            }
+            parameters.getTraceService().set(this.traceService);
+            parameters.getTraceName().set(this.traceName);
+            parameters.getPhase().set(CMakeExecAction.INSTALL_PHASE);
+            if (this.installMode.get() == InstallMode.LINK) {
+                parameters.getLinkedInstallDirectory().set(this.installDirectory);
+                parameters.getLinkedTrees().from(this.cmakeFiles, this.sourceDirectory);
+            }
         });
     }
 
+    /**
+     * The name of the configuration to install, as CMake reported it. Multi-config generators name their build files
+     * after it, so it has to match their case exactly.
+     */
     @Input
-    public String getBuildType() {
-        return buildType;
+    public Property<String> getBuildType() {
+        return this.buildType;
+    }
+
+    @Input
+    public Property<String> getCmakeExecutable() {
+        return this.cmakeExecutable;
+    }
+
+    /**
+     * Whether {@link #getCmakeFiles()} is shared with other projects and checkouts, and so must be locked while in use.
+     */
+    @Internal
+    public Property<Boolean> getSharedBuildDirectory() {
+        return this.sharedBuildDirectory;
     }
 
-    public void setBuildType(String buildType) {
-        this.buildType = buildType;
+    /**
+     * The checkout that the shared build directory's copy of the sources is synced from before cmake runs, if any.
+     * Its files are tracked through {@link #getSources()}.
+     */
+    @Internal
+    public DirectoryProperty getSyncedSourceDirectory() {
+        return this.syncedSourceDirectory;
     }
 
-    @OutputFiles
+    /**
+     * The directories of {@link #getSyncedSourceDirectory()} that are not synced, being the build directories of every project.
+     */
+    @Internal
+    public ConfigurableFileCollection getSyncExcludedDirectories() {
+        return this.syncExcludedDirectories;
+    }
+
+    /**
+     * The service the phases of this task are timed by, if any.
+     */
+    @Internal
+    public Property<CMakeTraceService> getTraceService() {
+        return this.traceService;
+    }
+
+    /**
+     * The name the phases of this task are timed under, defaulting to the task's name.
+     */
+    @Internal
+    public Property<String> getTraceName() {
+        return this.traceName;
+    }
+
+    @Input
+    public Property<InstallMode> getInstallMode() {
+        return this.installMode;
+    }
+
+    /**
+     * The install components to install, each with its own {@code cmake --install}. If empty, everything is installed.
+     */
+    @Input
+    public ListProperty<String> getComponents() {
+        return this.components;
+    }
+
+    @Internal
     public FileCollection getBinFiles() {
         // TODO: This assumes that CMAKE_INSTALL_BINDIR has not been modified
         return filesFromInstallFolder("bin");
     }
 
-    @OutputDirectory
+    @Internal
     public Provider<Directory> getBinDirectory() {
         return installFolder("bin");
     }
 
-    @OutputFiles
+    @Internal
     public FileCollection getSbinFiles() {
         // TODO: This assumes that CMAKE_INSTALL_SBINDIR has not been modified
         return filesFromInstallFolder("sbin");
     }
 
-    @OutputFiles
+    @Internal
     public FileCollection getLibFiles() {
         // TODO: This assumes that CMAKE_INSTALL_LIBDIR has not been modified
         return filesFromInstallFolder("lib");
     }
 
-    @OutputDirectory
+    @Internal
     public Provider<Directory> getLibDirectory() {
         return installFolder("lib");
     }
 
-    @OutputFiles
+    @Internal
     public FileCollection getIncludeFiles() {
         // TODO: This assumes that CMAKE_INSTALL_INCLUDEDIR has not been modified
         return filesFromInstallFolder("include");
     }
 
-    @OutputDirectory
+    @Internal
     public Provider<Directory> getIncludeDirectory() {
         return installFolder("include");
     }
 
-    @OutputFiles
+    @Internal
     public FileCollection getSysconfFiles() {
         // TODO: This assumes that CMAKE_INSTALL_SYSCONFDIR has not been modified
         return filesFromInstallFolder("etc");
     }
 
-    @OutputFiles
+    @Internal
     public FileCollection getShareStateFiles() {
         // TODO: This assumes that CMAKE_INSTALL_SHARESTATEDIR has not been modified
         return filesFromInstallFolder("com");
     }
 
-    @OutputFiles
+    @Internal
     public FileCollection getDataFiles() {
         // TODO: This assumes that CMAKE_INSTALL_DATAROOTDIR has not been modified
         return filesFromInstallFolder("share");
     }
 
     public FileCollection filesFromInstallFolder(String folder) {
-        this.getOutputDirectory().toPath().resolve(folder).toFile().mkdir();
-        return getProject().fileTree(this.getOutputDirectory().toPath().resolve(folder).toFile());
+        return objectFactory.fileTree().from(installFolder(folder));
     }
 
     public Provider<Directory> installFolder(String folder) {
-        this.getOutputDirectory().toPath().resolve(folder).toFile().mkdir();
-        return getProject().getLayout().dir(Providers.of(this.getOutputDirectory().toPath().resolve(folder).toFile()));
+        return this.installDirectory.dir(folder);
     }
 
+    /**
+     * The prefix the project is installed into. This is the only output of the task, so the whole install tree
+     * is stored as a single build cache entry, and paths in it are tracked relative to the prefix.
+     */
     @OutputDirectory
+    public DirectoryProperty getInstallDirectory() {
+        return this.installDirectory;
+    }
+
+    @Internal
     public File getOutputDirectory() {
-        return getTemporaryDir();
+        return this.installDirectory.get().getAsFile();
     }
 
-    @InputDirectory
-    @PathSensitive(PathSensitivity.RELATIVE)
+    /**
+     * The CMake build directory to install from. Like in {@link CMakeBuildTask}, the directory itself is not an input.
+     */
+    @Internal
     public DirectoryProperty getCmakeFiles() {
         return this.cmakeFiles;
     }
+
+    /**
+     * The CMake source directory, which installed headers may be linked from. Like {@link #getCmakeFiles()}, the
+     * directory itself is not an input.
+     */
+    @Internal
+    public DirectoryProperty getSourceDirectory() {
+        return this.sourceDirectory;
+    }
+
+    /**
+     * The source files and headers of the targets being installed, along with the CMake files that describe them.
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public ConfigurableFileCollection getSources() {
+        return this.sources;
+    }
+
+    /**
+     * The fingerprint of the configure that generated the build directory.
+     */
+    @Input
+    @Optional
+    public Property<String> getConfigureFingerprint() {
+        return this.configureFingerprint;
+    }
+
+    /**
+     * The files built by {@link CMakeBuildTask} that get installed.
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public ConfigurableFileCollection getArtifacts() {
+        return this.artifacts;
+    }
 }
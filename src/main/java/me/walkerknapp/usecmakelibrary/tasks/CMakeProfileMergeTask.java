@@ -0,0 +1,85 @@
+package me.walkerknapp.usecmakelibrary.tasks;
+
+import me.walkerknapp.usecmakelibrary.util.ProfileGuidedOptimization;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.*;
+import org.gradle.process.ExecOperations;
+
+import javax.inject.Inject;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Merges the raw profiles written while training an instrumented build into the profile data an optimized build is
+ * compiled with.
+ */
+@CacheableTask
+public class CMakeProfileMergeTask extends DefaultTask {
+    private final Property<ProfileGuidedOptimization.Compiler> compiler;
+    private final Property<String> profdataExecutable;
+    private final DirectoryProperty rawProfileDirectory;
+    private final DirectoryProperty profileDirectory;
+
+    private final FileSystemOperations fileSystemOperations;
+    private final ExecOperations execOperations;
+
+    @Inject
+    public CMakeProfileMergeTask(ObjectFactory objectFactory, FileSystemOperations fileSystemOperations, ExecOperations execOperations) {
+        this.compiler = objectFactory.property(ProfileGuidedOptimization.Compiler.class);
+        this.profdataExecutable = objectFactory.property(String.class).convention("llvm-profdata");
+        this.rawProfileDirectory = objectFactory.directoryProperty();
+        this.profileDirectory = objectFactory.directoryProperty();
+        this.fileSystemOperations = fileSystemOperations;
+        this.execOperations = execOperations;
+    }
+
+    @TaskAction
+    public void merge() {
+        Path rawProfiles = this.rawProfileDirectory.get().getAsFile().toPath();
+        Path profiles = this.profileDirectory.get().getAsFile().toPath();
+
+        Optional<List<String>> mergeCommand = ProfileGuidedOptimization.mergeCommand(this.compiler.get(), this.profdataExecutable.get(),
+                rawProfiles, profiles);
+        if (mergeCommand.isEmpty()) {
+            fileSystemOperations.sync(spec -> spec.from(rawProfiles).into(profiles));
+            return;
+        }
+
+        // The merge command names the output, followed by every raw profile
+        if (mergeCommand.get().size() <= 3) {
+            throw new GradleException("No raw profiles were written to " + rawProfiles + ". Check that the training workload runs the instrumented build.");
+        }
+        fileSystemOperations.delete(spec -> spec.delete(profiles.toFile().listFiles()));
+        execOperations.exec(execSpec -> execSpec.commandLine(mergeCommand.get()));
+    }
+
+    @Input
+    public Property<ProfileGuidedOptimization.Compiler> getCompiler() {
+        return this.compiler;
+    }
+
+    /**
+     * The llvm-profdata tool that merges Clang's raw profiles.
+     */
+    @Input
+    public Property<String> getProfdataExecutable() {
+        return this.profdataExecutable;
+    }
+
+    @InputDirectory
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public DirectoryProperty getRawProfileDirectory() {
+        return this.rawProfileDirectory;
+    }
+
+    @OutputDirectory
+    public DirectoryProperty getProfileDirectory() {
+        return this.profileDirectory;
+    }
+}
@@ -0,0 +1,70 @@
+package me.walkerknapp.usecmakelibrary.tasks;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.tasks.Exec;
+import org.gradle.api.tasks.InputDirectory;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+
+import javax.inject.Inject;
+
+/**
+ * Runs a training workload against an instrumented build, so that it writes the raw profiles an optimized build is
+ * compiled with. What to run is up to the build using the plugin, for example:
+ *
+ * <pre>
+ * tasks.withType(CMakeProfileTrainTask).configureEach {
+ *     executable installDirectory.file('bin/benchmark').get().asFile
+ *     args '--iterations', '1000'
+ * }
+ * </pre>
+ *
+ * Raw profiles from earlier runs are removed first, so the profiles only describe the latest training.
+ */
+public class CMakeProfileTrainTask extends Exec {
+    private final DirectoryProperty installDirectory;
+    private final DirectoryProperty profileDirectory;
+
+    private final FileSystemOperations fileSystemOperations;
+
+    @Inject
+    public CMakeProfileTrainTask(ObjectFactory objectFactory, FileSystemOperations fileSystemOperations) {
+        this.installDirectory = objectFactory.directoryProperty();
+        this.profileDirectory = objectFactory.directoryProperty();
+        this.fileSystemOperations = fileSystemOperations;
+    }
+
+    @Override
+    @TaskAction
+    protected void exec() {
+        if (getExecutable() == null) {
+            throw new GradleException("No training workload is configured for " + getPath() + ". Configure its executable and arguments to run"
+                    + " against the instrumented build in " + this.installDirectory.get().getAsFile() + ".");
+        }
+        fileSystemOperations.delete(spec -> spec.delete(this.profileDirectory.get().getAsFile().listFiles()));
+        super.exec();
+    }
+
+    /**
+     * Where the instrumented build is installed to, which the training workload runs from.
+     */
+    @InputDirectory
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public DirectoryProperty getInstallDirectory() {
+        return this.installDirectory;
+    }
+
+    /**
+     * Where the instrumented build writes its raw profiles to. This is fixed when the instrumented build is
+     * configured, so it can't be changed here.
+     */
+    @OutputDirectory
+    public DirectoryProperty getProfileDirectory() {
+        return this.profileDirectory;
+    }
+}
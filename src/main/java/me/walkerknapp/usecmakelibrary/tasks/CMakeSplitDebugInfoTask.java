@@ -0,0 +1,113 @@
+package me.walkerknapp.usecmakelibrary.tasks;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.*;
+import org.gradle.nativeplatform.TargetMachine;
+import org.gradle.nativeplatform.toolchain.Clang;
+import org.gradle.nativeplatform.toolchain.Gcc;
+import org.gradle.nativeplatform.toolchain.NativeToolChain;
+import org.gradle.process.ExecOperations;
+
+import javax.inject.Inject;
+import java.io.File;
+
+/**
+ * Splits the debug info out of shared libraries, writing a stripped copy of each library along with a file holding
+ * its debug info. The stripped copies name their debug info file through a debuglink, so debuggers still find it
+ * when it is placed next to them or in a debug directory.
+ */
+@CacheableTask
+public class CMakeSplitDebugInfoTask extends DefaultTask {
+    private final ConfigurableFileCollection binaries;
+    private final Property<String> objcopyExecutable;
+    private final Property<String> stripExecutable;
+    private final DirectoryProperty strippedDirectory;
+    private final DirectoryProperty debugInfoDirectory;
+
+    private final FileSystemOperations fileSystemOperations;
+    private final ExecOperations execOperations;
+
+    @Inject
+    public CMakeSplitDebugInfoTask(ObjectFactory objectFactory, FileSystemOperations fileSystemOperations, ExecOperations execOperations) {
+        this.binaries = objectFactory.fileCollection();
+        this.objcopyExecutable = objectFactory.property(String.class);
+        this.stripExecutable = objectFactory.property(String.class);
+        this.strippedDirectory = objectFactory.directoryProperty();
+        this.debugInfoDirectory = objectFactory.directoryProperty();
+        this.fileSystemOperations = fileSystemOperations;
+        this.execOperations = execOperations;
+    }
+
+    /**
+     * Whether binaries built with {@code toolChain} for {@code targetMachine} can have their debug info split out.
+     * This needs the GNU objcopy and strip, and debuglinks, which Mach-O binaries don't have.
+     */
+    public static boolean isSupported(NativeToolChain toolChain, TargetMachine targetMachine) {
+        return (toolChain instanceof Gcc || toolChain instanceof Clang) && !targetMachine.getOperatingSystemFamily().isMacOs();
+    }
+
+    /**
+     * The stripped copy of {@code binary} written into {@code strippedDirectory}.
+     */
+    public static File strippedFile(File strippedDirectory, File binary) {
+        return new File(strippedDirectory, binary.getName());
+    }
+
+    /**
+     * The debug info of {@code binary} written into {@code debugInfoDirectory}.
+     */
+    public static File debugInfoFile(File debugInfoDirectory, File binary) {
+        return new File(debugInfoDirectory, binary.getName() + ".debug");
+    }
+
+    @TaskAction
+    public void split() {
+        File stripped = this.strippedDirectory.get().getAsFile();
+        File debugInfo = this.debugInfoDirectory.get().getAsFile();
+        fileSystemOperations.delete(spec -> spec.delete(stripped.listFiles(), debugInfo.listFiles()));
+
+        for (File binary : this.binaries.getFiles()) {
+            File strippedFile = strippedFile(stripped, binary);
+            File debugInfoFile = debugInfoFile(debugInfo, binary);
+
+            execOperations.exec(execSpec -> execSpec.commandLine(this.objcopyExecutable.get(), "--only-keep-debug",
+                    binary.getAbsolutePath(), debugInfoFile.getAbsolutePath()));
+            // Dynamic symbols are kept, as loading the library needs them
+            execOperations.exec(execSpec -> execSpec.commandLine(this.stripExecutable.get(), "--strip-debug", "--strip-unneeded",
+                    "-o", strippedFile.getAbsolutePath(), binary.getAbsolutePath()));
+            execOperations.exec(execSpec -> execSpec.commandLine(this.objcopyExecutable.get(),
+                    "--add-gnu-debuglink=" + debugInfoFile.getAbsolutePath(), strippedFile.getAbsolutePath()));
+        }
+    }
+
+    @InputFiles
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public ConfigurableFileCollection getBinaries() {
+        return this.binaries;
+    }
+
+    @Input
+    public Property<String> getObjcopyExecutable() {
+        return this.objcopyExecutable;
+    }
+
+    @Input
+    public Property<String> getStripExecutable() {
+        return this.stripExecutable;
+    }
+
+    @OutputDirectory
+    public DirectoryProperty getStrippedDirectory() {
+        return this.strippedDirectory;
+    }
+
+    @OutputDirectory
+    public DirectoryProperty getDebugInfoDirectory() {
+        return this.debugInfoDirectory;
+    }
+}
@@ -0,0 +1,65 @@
+package me.walkerknapp.usecmakelibrary.util;
+
+import org.gradle.api.artifacts.PublishArtifact;
+import org.gradle.api.tasks.TaskDependency;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.util.Date;
+
+/**
+ * An artifact produced by a CMake build, whose file is only known once the build has been generated.
+ */
+public class CMakeArtifact implements PublishArtifact {
+    private final File file;
+    private final TaskDependency buildDependencies;
+    @Nullable
+    private final String classifier;
+
+    public CMakeArtifact(File file, TaskDependency buildDependencies, @Nullable String classifier) {
+        this.file = file;
+        this.buildDependencies = buildDependencies;
+        this.classifier = classifier;
+    }
+
+    @Override
+    public String getName() {
+        String fileName = file.getName();
+        int extensionIndex = fileName.lastIndexOf('.');
+        return extensionIndex > 0 ? fileName.substring(0, extensionIndex) : fileName;
+    }
+
+    @Override
+    public String getExtension() {
+        String fileName = file.getName();
+        int extensionIndex = fileName.lastIndexOf('.');
+        return extensionIndex > 0 ? fileName.substring(extensionIndex + 1) : "";
+    }
+
+    @Override
+    public String getType() {
+        return getExtension();
+    }
+
+    @Nullable
+    @Override
+    public String getClassifier() {
+        return classifier;
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    @Nullable
+    @Override
+    public Date getDate() {
+        return null;
+    }
+
+    @Override
+    public TaskDependency getBuildDependencies() {
+        return buildDependencies;
+    }
+}
@@ -0,0 +1,409 @@
+package me.walkerknapp.usecmakelibrary.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * The timings of the individual steps (compiles, links and custom commands) of the last native build of a build
+ * directory.
+ *
+ * Ninja records every step it runs in {@code .ninja_log}, so Ninja builds need nothing more. Makefile builds record
+ * their compiles and links through a small launcher script that CMake puts in front of the compiler and linker, which
+ * appends to a log named by {@link #LOG_ENVIRONMENT_VARIABLE} when it is set, and otherwise just runs the command.
+ *
+ * Ninja Multi-Config builds every configuration into the same directory and log, telling their steps apart by the
+ * configuration directory their outputs are in, such as {@code CMakeFiles/foo.dir/Release/foo.cpp.o}. Their steps
+ * are read for one configuration at a time.
+ */
+public class CMakeBuildTimings {
+    public static final String LOG_ENVIRONMENT_VARIABLE = "GRADLE_CMAKE_TIMING_LOG";
+
+    private static final String NINJA_LOG = ".ninja_log";
+    private static final String LAUNCHER_LOG = "gradle-build-timings.log";
+    private static final String PARALLELISM_FILE = "gradle-build-parallelism";
+    private static final String LAUNCHER = "timing-launcher.sh";
+
+    private static final String LAUNCHER_SCRIPT = String.join("\n",
+            "#!/bin/sh",
+            "# Runs a compile or link, recording when it started and finished for the CMake build report",
+            "if [ -z \"$" + LOG_ENVIRONMENT_VARIABLE + "\" ]; then",
+            "    exec \"$@\"",
+            "fi",
+            "start=$(date +%s%N)",
+            "\"$@\"",
+            "status=$?",
+            "end=$(date +%s%N)",
+            "output=",
+            "previous=",
+            "for argument in \"$@\"; do",
+            "    if [ \"$previous\" = \"-o\" ]; then",
+            "        output=$argument",
+            "    fi",
+            "    previous=$argument",
+            "done",
+            "case \"$output\" in",
+            "    /*) ;;",
+            "    *) output=\"$PWD/$output\" ;;",
+            "esac",
+            "printf '%s\\t%s\\t%s\\n' \"$start\" \"$end\" \"$output\" >> \"$" + LOG_ENVIRONMENT_VARIABLE + "\"",
+            "exit $status",
+            "");
+
+    private final List<Step> steps;
+    private final Integer parallelism;
+
+    private CMakeBuildTimings(List<Step> steps, Integer parallelism) {
+        this.steps = steps;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Writes the timing launcher into {@code cacheDirectory}, or reuses the one written before.
+     */
+    public static File writeLauncher(Path cacheDirectory) {
+        Path launcher = cacheDirectory.resolve(LAUNCHER);
+        try {
+            if (!Files.isRegularFile(launcher) || !Files.readString(launcher, StandardCharsets.UTF_8).equals(LAUNCHER_SCRIPT)) {
+                Files.createDirectories(cacheDirectory);
+                Path temporary = Files.createTempFile(cacheDirectory, LAUNCHER, ".tmp");
+                Files.writeString(temporary, LAUNCHER_SCRIPT, StandardCharsets.UTF_8);
+                if (!temporary.toFile().setExecutable(true)) {
+                    throw new IOException("Could not make " + temporary + " executable");
+                }
+                Files.move(temporary, launcher, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write timing launcher " + launcher, e);
+        }
+        return launcher.toFile();
+    }
+
+    /**
+     * Whether the timing launcher can run on this machine, as it needs a POSIX shell.
+     */
+    public static boolean canUseLauncher() {
+        return !System.getProperty("os.name").toLowerCase().contains("win");
+    }
+
+    /**
+     * The log the timing launcher should append to while building {@code buildDirectory}.
+     */
+    public static Path launcherLog(Path buildDirectory) {
+        return buildDirectory.resolve("CMakeFiles").resolve(LAUNCHER_LOG);
+    }
+
+    /**
+     * Prepares {@code buildDirectory} for a build running with {@code parallelism} jobs, if known, so that only the
+     * steps of that build are reported.
+     */
+    public static void startBuild(Path buildDirectory, Integer parallelism) {
+        try {
+            Files.deleteIfExists(launcherLog(buildDirectory));
+            Path parallelismFile = buildDirectory.resolve("CMakeFiles").resolve(PARALLELISM_FILE);
+            if (parallelism != null) {
+                Files.createDirectories(parallelismFile.getParent());
+                Files.writeString(parallelismFile, String.valueOf(parallelism), StandardCharsets.UTF_8);
+            } else {
+                Files.deleteIfExists(parallelismFile);
+            }
+        } catch (IOException e) {
+            // The report just covers more than the last build, or doesn't know its parallelism
+        }
+    }
+
+    /**
+     * Reads the timings of the last build of {@code configuration} in {@code buildDirectory}, if it left any behind.
+     */
+    public static Optional<CMakeBuildTimings> read(Path buildDirectory, String configuration) {
+        try {
+            List<Step> steps = Files.isRegularFile(buildDirectory.resolve(NINJA_LOG))
+                    ? readNinjaLog(buildDirectory, configuration)
+                    : readLauncherLog(buildDirectory);
+            if (steps.isEmpty()) {
+                return Optional.empty();
+            }
+
+            Integer parallelism = null;
+            Path parallelismFile = buildDirectory.resolve("CMakeFiles").resolve(PARALLELISM_FILE);
+            if (Files.isRegularFile(parallelismFile)) {
+                parallelism = Integer.valueOf(Files.readString(parallelismFile, StandardCharsets.UTF_8).trim());
+            }
+            return Optional.of(new CMakeBuildTimings(steps, parallelism));
+        } catch (IOException | NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static List<Step> readNinjaLog(Path buildDirectory, String configuration) throws IOException {
+        Set<String> configurations = multiConfigurations(buildDirectory);
+
+        // Ninja appends each step as it finishes, so end times only go down where a new build started. With several
+        // configurations, this only holds among the steps of each one.
+        List<Step> steps = new ArrayList<>();
+        Set<String> edges = new HashSet<>();
+        long lastEnd = -1;
+        try (BufferedReader reader = Files.newBufferedReader(buildDirectory.resolve(NINJA_LOG), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                if (fields.length < 5) {
+                    continue;
+                }
+                String output = fields[3];
+                if (!configurations.isEmpty()) {
+                    output = configurationOutput(output, configurations, configuration);
+                    if (output == null) {
+                        continue;
+                    }
+                }
+
+                long start = Long.parseLong(fields[0]);
+                long end = Long.parseLong(fields[1]);
+                if (end < lastEnd) {
+                    steps.clear();
+                    edges.clear();
+                }
+                lastEnd = end;
+
+                // A step with several outputs is logged once per output, with the same times and command hash
+                if (edges.add(fields[0] + "\t" + fields[1] + "\t" + fields[4])) {
+                    steps.add(new Step(output, start, end));
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Unrecognized Ninja log", e);
+        }
+        return steps;
+    }
+
+    /**
+     * The configurations of a Ninja Multi-Config build directory, which has a build file for each, or none for a
+     * build directory of a single configuration.
+     */
+    private static Set<String> multiConfigurations(Path buildDirectory) throws IOException {
+        Set<String> configurations = new HashSet<>();
+        try (DirectoryStream<Path> buildFiles = Files.newDirectoryStream(buildDirectory, "build-*.ninja")) {
+            for (Path buildFile : buildFiles) {
+                String name = buildFile.getFileName().toString();
+                configurations.add(name.substring("build-".length(), name.length() - ".ninja".length()));
+            }
+        }
+        return configurations;
+    }
+
+    /**
+     * The output of a step of {@code configuration}, with its object directory no longer naming the configuration,
+     * so that it names the compiled source like in single configuration builds. Steps of other configurations, and
+     * those no configuration is named by, give null.
+     */
+    private static String configurationOutput(String output, Set<String> configurations, String configuration) {
+        String[] segments = output.split("/");
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (!configurations.contains(segments[i])) {
+                continue;
+            }
+            if (!segments[i].equalsIgnoreCase(configuration)) {
+                return null;
+            }
+            // Artifacts keep their configuration directory, as the target replies name them with it
+            if (i > 0 && segments[i - 1].endsWith(".dir")) {
+                List<String> kept = new ArrayList<>(Arrays.asList(segments));
+                kept.remove(i);
+                return String.join("/", kept);
+            }
+            return output;
+        }
+        return null;
+    }
+
+    private static List<Step> readLauncherLog(Path buildDirectory) throws IOException {
+        Path log = launcherLog(buildDirectory);
+        if (!Files.isRegularFile(log)) {
+            return List.of();
+        }
+
+        List<String[]> entries = new ArrayList<>();
+        long firstStart = Long.MAX_VALUE;
+        for (String line : Files.readAllLines(log, StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t");
+            // date without nanosecond support (as on macOS) leaves unusable times, which are skipped
+            if (fields.length < 3 || !fields[0].matches("\\d+") || !fields[1].matches("\\d+")) {
+                continue;
+            }
+            entries.add(fields);
+            firstStart = Math.min(firstStart, Long.parseLong(fields[0]));
+        }
+
+        List<Step> steps = new ArrayList<>();
+        Path normalizedBuildDirectory = buildDirectory.toAbsolutePath().normalize();
+        for (String[] fields : entries) {
+            Path output = Path.of(fields[2]).normalize();
+            String relativeOutput = output.startsWith(normalizedBuildDirectory)
+                    ? normalizedBuildDirectory.relativize(output).toString().replace('\\', '/')
+                    : output.toString();
+            steps.add(new Step(relativeOutput,
+                    (Long.parseLong(fields[0]) - firstStart) / 1_000_000,
+                    (Long.parseLong(fields[1]) - firstStart) / 1_000_000));
+        }
+        return steps;
+    }
+
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    /**
+     * The number of jobs the build was run with, if it was run by the plugin.
+     */
+    public Optional<Integer> getParallelism() {
+        return Optional.ofNullable(parallelism);
+    }
+
+    /**
+     * The time from the first step starting to the last one finishing, in milliseconds.
+     */
+    public long getWallMillis() {
+        long start = steps.stream().mapToLong(Step::getStartMillis).min().orElse(0);
+        long end = steps.stream().mapToLong(Step::getEndMillis).max().orElse(0);
+        return end - start;
+    }
+
+    /**
+     * The time spent in every step together, in milliseconds.
+     */
+    public long getTotalMillis() {
+        return steps.stream().mapToLong(Step::getMillis).sum();
+    }
+
+    /**
+     * The most steps that were running at the same time.
+     */
+    public int getPeakConcurrency() {
+        List<long[]> events = new ArrayList<>();
+        for (Step step : steps) {
+            events.add(new long[]{step.getStartMillis(), 1});
+            events.add(new long[]{step.getEndMillis(), -1});
+        }
+        // Steps finishing are counted before steps starting at the same time
+        events.sort(Comparator.<long[]>comparingLong(event -> event[0]).thenComparingLong(event -> event[1]));
+
+        int running = 0;
+        int peak = 0;
+        for (long[] event : events) {
+            running += event[1];
+            peak = Math.max(peak, running);
+        }
+        return peak;
+    }
+
+    /**
+     * Groups steps by the target they belong to, given the outputs of each target's artifacts (relative to the build
+     * directory) by target name. Objects are attributed by the {@code CMakeFiles/<target>.dir/} directory CMake
+     * compiles them into. Steps that belong to no target are grouped under the empty name.
+     */
+    public Map<String, List<Step>> byTarget(Map<String, String> artifactTargets, Set<String> targetNames) {
+        Map<String, List<Step>> byTarget = new HashMap<>();
+        for (Step step : steps) {
+            byTarget.computeIfAbsent(targetOf(step, artifactTargets, targetNames), t -> new ArrayList<>()).add(step);
+        }
+        return byTarget;
+    }
+
+    private static String targetOf(Step step, Map<String, String> artifactTargets, Set<String> targetNames) {
+        String target = artifactTargets.get(step.getOutput());
+        if (target != null) {
+            return target;
+        }
+        String objectDirectory = objectDirectoryOf(step.getOutput());
+        if (objectDirectory != null && targetNames.contains(objectDirectory)) {
+            return objectDirectory;
+        }
+        return "";
+    }
+
+    private static String objectDirectoryOf(String output) {
+        int cmakeFiles = output.lastIndexOf("CMakeFiles/");
+        if (cmakeFiles < 0) {
+            return null;
+        }
+        int dir = output.indexOf(".dir/", cmakeFiles);
+        return dir < 0 ? null : output.substring(cmakeFiles + "CMakeFiles/".length(), dir);
+    }
+
+    /**
+     * The source an object was compiled from, relative to the source directory as CMake names it, or the object
+     * itself for steps that aren't compiles.
+     */
+    public static String sourceOf(Step step) {
+        String output = step.getOutput();
+        int cmakeFiles = output.lastIndexOf("CMakeFiles/");
+        int dir = cmakeFiles < 0 ? -1 : output.indexOf(".dir/", cmakeFiles);
+        if (dir < 0) {
+            return output;
+        }
+        String source = output.substring(dir + ".dir/".length());
+        for (String extension : List.of(".o", ".obj")) {
+            if (source.endsWith(extension)) {
+                return source.substring(0, source.length() - extension.length());
+            }
+        }
+        return source;
+    }
+
+    /**
+     * Whether a step compiled an object, as opposed to linking, archiving or running a custom command.
+     */
+    public static boolean isCompile(Step step) {
+        return step.getOutput().contains(".dir/") && (step.getOutput().endsWith(".o") || step.getOutput().endsWith(".obj"));
+    }
+
+    public static class Step {
+        private final String output;
+        private final long startMillis;
+        private final long endMillis;
+
+        private Step(String output, long startMillis, long endMillis) {
+            this.output = output;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+        }
+
+        /**
+         * The file the step produced, relative to the build directory.
+         */
+        public String getOutput() {
+            return output;
+        }
+
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        public long getMillis() {
+            return endMillis - startMillis;
+        }
+    }
+}
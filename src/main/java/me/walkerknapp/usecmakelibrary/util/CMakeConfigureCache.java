@@ -0,0 +1,215 @@
+package me.walkerknapp.usecmakelibrary.util;
+
+import me.walkerknapp.cfi.structs.CMakeFiles;
+import me.walkerknapp.cfi.structs.CodeModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Remembers the fingerprint of the last successful configure of a build directory, so that an unchanged build
+ * directory can be reused by reading its existing codemodel reply instead of running cmake again.
+ *
+ * The fingerprint covers the configure command line, the toolchain binaries it names, and the contents of every
+ * CMakeLists.txt/.cmake input that CMake reported in its cmakeFiles reply. It is also an input of the build tasks, so
+ * it names nothing by where the checkout or Gradle user home is: paths under the source and build directories are
+ * taken relative to them, and the toolchain binaries are identified by their contents.
+ */
+public class CMakeConfigureCache {
+    private static final String CACHE_FILE = "gradle-configure.properties";
+
+    private static final String FINGERPRINT_KEY = "fingerprint";
+    private static final String CODE_MODEL_KEY = "codemodel";
+    private static final String INPUTS_KEY = "inputs";
+
+    // Content hashes of toolchain binaries, which are large and rarely change, by path, size and modification time
+    private static final Map<String, String> TOOL_HASHES = new ConcurrentHashMap<>();
+
+    private static Path cacheFile(Path buildDirectory) {
+        return buildDirectory.resolve(CACHE_FILE);
+    }
+
+    /**
+     * Reads the codemodel left behind by the last configure of this build directory with {@code readCodeModel},
+     * given the codemodel's reply file name, if that configure was run with the same command and none of its
+     * inputs have changed since.
+     */
+    public static Optional<CodeModel> readIfUpToDate(Path buildDirectory, Path sourceDirectory, CMakeGenerator.ConfigureCommand command,
+                                                     Function<String, CodeModel> readCodeModel) {
+        Optional<Properties> stored = readProperties(buildDirectory);
+        if (stored.isEmpty()) {
+            return Optional.empty();
+        }
+        Properties properties = stored.get();
+
+        String codeModelFile = properties.getProperty(CODE_MODEL_KEY);
+        if (codeModelFile == null || !Files.isRegularFile(CMakeFileApi.replyDirectory(buildDirectory).resolve(codeModelFile))) {
+            return Optional.empty();
+        }
+
+        if (!fingerprint(command, sourceDirectory, buildDirectory, inputsOf(properties)).equals(properties.getProperty(FINGERPRINT_KEY))) {
+            return Optional.empty();
+        }
+
+        return Optional.of(readCodeModel.apply(codeModelFile));
+    }
+
+    /**
+     * Records the fingerprint of a configure that has just finished, so that the next run can reuse it.
+     */
+    public static void write(Path buildDirectory, Path sourceDirectory, CMakeGenerator.ConfigureCommand command, CMakeFiles cmakeFiles) {
+        String codeModelFile = CMakeFileApi.latestReplyFile(buildDirectory, "codemodel-v2-*.json");
+        if (codeModelFile == null) {
+            return;
+        }
+
+        // Generated inputs live in the build directory itself, and are regenerated by every configure
+        List<Path> inputPaths = cmakeFiles.inputs.stream()
+                .filter(input -> !input.isGenerated)
+                .map(input -> sourceDirectory.resolve(input.path).toAbsolutePath().normalize())
+                .collect(Collectors.toList());
+
+        Properties properties = new Properties();
+        properties.setProperty(FINGERPRINT_KEY, fingerprint(command, sourceDirectory, buildDirectory, inputPaths));
+        properties.setProperty(CODE_MODEL_KEY, codeModelFile);
+        properties.setProperty(INPUTS_KEY, inputPaths.stream().map(Path::toString).collect(Collectors.joining(File.pathSeparator)));
+
+        try (Writer writer = Files.newBufferedWriter(cacheFile(buildDirectory), StandardCharsets.UTF_8)) {
+            properties.store(writer, "CMake configure fingerprint, written by gradle-use-cmake-library");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write configure fingerprint for " + buildDirectory, e);
+        }
+    }
+
+    /**
+     * The fingerprint recorded by the last configure of this build directory, if any.
+     */
+    public static Optional<String> readFingerprint(Path buildDirectory) {
+        return readProperties(buildDirectory).map(properties -> properties.getProperty(FINGERPRINT_KEY));
+    }
+
+    /**
+     * The CMakeLists.txt/.cmake inputs reported by the last configure of this build directory.
+     */
+    public static List<Path> readInputs(Path buildDirectory) {
+        return readProperties(buildDirectory).map(CMakeConfigureCache::inputsOf).orElse(List.of());
+    }
+
+    /**
+     * Every file the codemodel of the last configure of this build directory depends on: the CMakeLists.txt/.cmake
+     * inputs, and the codemodel reply, which is replaced whenever CMake configures again.
+     */
+    public static List<Path> readModelInputs(Path buildDirectory) {
+        return readProperties(buildDirectory).map(properties -> {
+            List<Path> inputs = new ArrayList<>(inputsOf(properties));
+            String codeModelFile = properties.getProperty(CODE_MODEL_KEY);
+            if (codeModelFile != null) {
+                inputs.add(CMakeFileApi.replyDirectory(buildDirectory).resolve(codeModelFile));
+            }
+            return inputs;
+        }).orElse(List.of());
+    }
+
+    private static Optional<Properties> readProperties(Path buildDirectory) {
+        Path cacheFile = cacheFile(buildDirectory);
+        if (!Files.isRegularFile(cacheFile)) {
+            return Optional.empty();
+        }
+
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+        return Optional.of(properties);
+    }
+
+    private static List<Path> inputsOf(Properties properties) {
+        String inputs = properties.getProperty(INPUTS_KEY, "");
+        return inputs.isEmpty() ? List.of() : Arrays.stream(inputs.split(File.pathSeparator))
+                .map(Path::of)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Forgets the last configure of this build directory, forcing the next run to configure again.
+     */
+    public static void invalidate(Path buildDirectory) {
+        try {
+            Files.deleteIfExists(cacheFile(buildDirectory));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not delete configure fingerprint for " + buildDirectory, e);
+        }
+    }
+
+    private static String fingerprint(CMakeGenerator.ConfigureCommand command, Path sourceDirectory, Path buildDirectory, List<Path> inputPaths) {
+        Path source = sourceDirectory.toAbsolutePath().normalize();
+        Path build = buildDirectory.toAbsolutePath().normalize();
+        File toolchainFile = command.getToolchainFile();
+
+        Hashing hashing = Hashing.start();
+        for (String argument : command.getCommandLine()) {
+            // Toolchain files are named by the hash of their contents, so the name alone identifies one
+            if (toolchainFile != null) {
+                argument = argument.replace(toolchainFile.getAbsolutePath().replace('\\', '/'), toolchainFile.getName());
+            }
+            hashing.putString(relativize(relativize(argument, build, "<build>"), source, "<source>"));
+        }
+
+        for (File tool : command.getTools()) {
+            hashing.putString(tool.getName());
+            hashing.putString(toolHash(tool));
+        }
+
+        for (Path input : inputPaths) {
+            hashing.putString(input.startsWith(source) ? source.relativize(input).toString().replace('\\', '/') : input.toString());
+            try {
+                hashing.putFile(input);
+            } catch (IOException e) {
+                // A missing input can never match the recorded fingerprint
+                hashing.putString("<missing>");
+            }
+        }
+        return hashing.finish();
+    }
+
+    /**
+     * {@code argument} with every mention of {@code directory}, in either of the forms CMake is given paths in,
+     * replaced by {@code placeholder}.
+     */
+    private static String relativize(String argument, Path directory, String placeholder) {
+        String path = directory.toString();
+        return argument.replace(path, placeholder).replace(path.replace('\\', '/'), placeholder);
+    }
+
+    /**
+     * The hash of the contents of {@code tool}, only hashed again once its size or modification time changes.
+     */
+    static String toolHash(File tool) {
+        String key = tool.getAbsolutePath() + ":" + tool.length() + ":" + tool.lastModified();
+        return TOOL_HASHES.computeIfAbsent(key, k -> {
+            try {
+                return Hashing.hash(tool.toPath());
+            } catch (IOException e) {
+                // A missing tool can never match the recorded fingerprint
+                return "<missing>";
+            }
+        });
+    }
+}
@@ -0,0 +1,44 @@
+package me.walkerknapp.usecmakelibrary.util;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where CMake's file API keeps its replies in a build directory.
+ */
+public class CMakeFileApi {
+    /**
+     * The directory CMake writes the replies of {@code buildDirectory} to, named relative to which reply files are
+     * referenced from the reply index and codemodel.
+     */
+    public static Path replyDirectory(Path buildDirectory) {
+        return buildDirectory.resolve(".cmake").resolve("api").resolve("v1").resolve("reply");
+    }
+
+    /**
+     * The name of the most recently written reply file of {@code buildDirectory} matching {@code glob}, or null if
+     * there is none.
+     */
+    public static String latestReplyFile(Path buildDirectory, String glob) {
+        Path replyDirectory = replyDirectory(buildDirectory);
+        if (!Files.isDirectory(replyDirectory)) {
+            return null;
+        }
+
+        List<Path> candidates = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(replyDirectory, glob)) {
+            stream.forEach(candidates::add);
+        } catch (IOException e) {
+            return null;
+        }
+
+        return candidates.stream()
+                .max((a, b) -> Long.compare(a.toFile().lastModified(), b.toFile().lastModified()))
+                .map(p -> p.getFileName().toString())
+                .orElse(null);
+    }
+}
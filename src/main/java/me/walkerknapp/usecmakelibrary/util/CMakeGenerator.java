@@ -1,144 +1,103 @@
 package me.walkerknapp.usecmakelibrary.util;
 
 import me.walkerknapp.usecmakelibrary.CMakeExtension;
-import org.gradle.api.Action;
 import org.gradle.api.Project;
-import org.gradle.language.base.internal.compile.VersionAwareCompiler;
-import org.gradle.nativeplatform.internal.LinkerSpec;
+import org.gradle.api.internal.project.ProjectInternal;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
 import org.gradle.nativeplatform.platform.NativePlatform;
 import org.gradle.nativeplatform.platform.internal.NativePlatformInternal;
 import org.gradle.nativeplatform.toolchain.NativeToolChain;
-import org.gradle.nativeplatform.toolchain.internal.*;
-import org.gradle.nativeplatform.toolchain.internal.compilespec.CCompileSpec;
-import org.gradle.nativeplatform.toolchain.internal.compilespec.CppCompileSpec;
 import org.gradle.nativeplatform.toolchain.internal.msvcpp.VisualCppToolChain;
-import org.gradle.nativeplatform.toolchain.internal.tools.CommandLineToolSearchResult;
+import org.gradle.process.ExecOperations;
 
+import javax.annotation.Nullable;
 import java.io.*;
-import java.lang.reflect.Field;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicReference;
 
 public class CMakeGenerator {
+    private static final Logger LOGGER = Logging.getLogger(CMakeGenerator.class);
 
     private static String capitalize(String s) {
         return s.substring(0, 1).toUpperCase() + s.substring(1);
     }
 
     public static void generateCmakeFiles(Project project, CMakeExtension extension, Path outputDirectory, String buildType, NativePlatform targetPlatform, NativeToolChain toolChain) {
-        String cmakeExecutable = System.getenv().getOrDefault("CMAKE_EXECUTABLE", "cmake");
+        generateCmakeFiles(execOperations(project), outputDirectory, createConfigureCommand(project, extension, project.getRootDir().toPath(), buildType, targetPlatform, toolChain));
+    }
+
+    public static void generateCmakeFiles(ExecOperations execOperations, Path outputDirectory, ConfigureCommand command) {
+        execOperations.exec(execSpec -> {
+            execSpec.setWorkingDir(outputDirectory);
+            execSpec.commandLine(command.getCommandLine());
+        });
+    }
+
+    public static ConfigureCommand createConfigureCommand(Project project, CMakeExtension extension, Path sourceDirectory, String buildType, NativePlatform targetPlatform, NativeToolChain toolChain) {
+        return createConfigureCommand(execOperations(project), project.getGradle().getGradleUserHomeDir().toPath(),
+                project.getProviders().environmentVariable("PATH").getOrNull(), extension, sourceDirectory,
+                buildType, targetPlatform, toolChain, List.of());
+    }
+
+    /**
+     * Creates the configure command of a build, passing {@code extraArguments} to CMake ahead of the extension's own arguments.
+     * This doesn't touch the project, so it can run on threads other than the one configuring it. For the same reason,
+     * the {@code PATH} that tools are looked up in is given as {@code searchPath}, read where the project's
+     * configuration can track it.
+     */
+    public static ConfigureCommand createConfigureCommand(ExecOperations execOperations, Path gradleUserHome, @Nullable String searchPath,
+                                                          CMakeExtension extension, Path sourceDirectory,
+                                                          String buildType, NativePlatform targetPlatform, NativeToolChain toolChain,
+                                                          List<String> extraArguments) {
+        String cmakeExecutable = extension.getCmakeExecutable().get();
 
-        NativeToolChainInternal nativeToolChain = (NativeToolChainInternal) toolChain;
         NativePlatformInternal nativePlatform = (NativePlatformInternal) targetPlatform;
-        PlatformToolProvider platformToolProvider = nativeToolChain.select(nativePlatform);
 
-        System.out.println("Using toolchain " + toolChain.getDisplayName());
+        LOGGER.info("Using toolchain {}", toolChain.getDisplayName());
 
         if (toolChain instanceof VisualCppToolChain) {
             // TODO: We could probably do something smarter than this
-            System.out.println("Toolchain is Visual Studio, trying to generate with MSVC...");
+            LOGGER.info("Toolchain is Visual Studio, trying to generate with MSVC...");
 
             String generatorString = VisualCppUtil.getCMakeGeneratorString((VisualCppToolChain) toolChain);
-            System.out.println("Using generator " + generatorString);
-            System.out.println("Using arch " + VisualCppUtil.getVisualStudioArchString(nativePlatform.getArchitecture()));
-
-            project.exec(execSpec -> {
-                execSpec.setWorkingDir(outputDirectory);
-                execSpec.commandLine(cmakeExecutable,
-                        "-G", generatorString,
-                        "-A", VisualCppUtil.getVisualStudioArchString(nativePlatform.getArchitecture()),
-                        "-DMSVC_RUNTIME_LIBRARY=\"\"",
-                        "-DCMAKE_BUILD_TYPE=" + capitalize(buildType),
-                        "--no-warn-unused-cli", project.getRootDir().getAbsolutePath());
-            });
+            LOGGER.info("Using generator {}", generatorString);
+            LOGGER.info("Using arch {}", VisualCppUtil.getVisualStudioArchString(nativePlatform.getArchitecture()));
+
+            return new ConfigureCommand(List.of(cmakeExecutable,
+                    "-G", generatorString,
+                    "-A", VisualCppUtil.getVisualStudioArchString(nativePlatform.getArchitecture()),
+                    "-DMSVC_RUNTIME_LIBRARY=\"\"",
+                    "-DCMAKE_BUILD_TYPE=" + capitalize(buildType),
+                    "--no-warn-unused-cli", sourceDirectory.toAbsolutePath().toString()),
+                    List.of(), null);
         } else {
-            System.out.println("Toolchain is non-IDE, trying to create a makefile...");
+            LOGGER.info("Toolchain is non-IDE, trying to create a command-line build...");
 
-            CommandLineToolSearchResult cCompilerRes = platformToolProvider.locateTool(ToolType.C_COMPILER);
-            CommandLineToolSearchResult cppCompilerRes = platformToolProvider.locateTool(ToolType.CPP_COMPILER);
-            CommandLineToolSearchResult arCompilerRes = platformToolProvider.locateTool(ToolType.STATIC_LIB_ARCHIVER);
-            CommandLineToolSearchResult objcopyCompilerRes = platformToolProvider.locateTool(ToolType.SYMBOL_EXTRACTOR);
-            CommandLineToolSearchResult stripCompilerRes = platformToolProvider.locateTool(ToolType.STRIPPER);
+            ToolChainProbe probe = ToolChainProbe.probe(toolChain, targetPlatform);
 
-            if (!cCompilerRes.isAvailable()) {
-                throw new AssertionError("Could not find C compiler for platform " + nativePlatform.getDisplayName()
-                        + " using toolchain " + nativeToolChain.getDisplayName());
-            }
-            if (!cppCompilerRes.isAvailable()) {
-                throw new AssertionError("Could not find C++ compiler for platform " + nativePlatform.getDisplayName()
-                        + " using toolchain " + nativeToolChain.getDisplayName());
-            }
-            if (!arCompilerRes.isAvailable()) {
-                throw new AssertionError("Could not find AR for platform " + nativePlatform.getDisplayName()
-                        + " using toolchain " + nativeToolChain.getDisplayName());
-            }
-            if (!objcopyCompilerRes.isAvailable()) {
-                throw new AssertionError("Could not find objcopy for platform " + nativePlatform.getDisplayName()
-                        + " using toolchain " + nativeToolChain.getDisplayName());
-            }
-            if (!stripCompilerRes.isAvailable()) {
-                throw new AssertionError("Could not find strip for platform " + nativePlatform.getDisplayName()
-                        + " using toolchain " + nativeToolChain.getDisplayName());
-            }
+            LOGGER.info("Found c compiler: {}", probe.getCCompiler().getAbsolutePath());
+            LOGGER.info("Found c++ compiler: {}", probe.getCppCompiler().getAbsolutePath());
+            LOGGER.info("Found ar tool: {}", probe.getArchiver().getAbsolutePath());
+            LOGGER.info("Found objcopy tool: {}", probe.getObjcopy().getAbsolutePath());
+            LOGGER.info("Found strip tool: {}", probe.getStrip().getAbsolutePath());
 
-            System.out.println("Found c compiler: " + cCompilerRes.getTool().getAbsolutePath());
-            System.out.println("Found c++ compiler: " + cppCompilerRes.getTool().getAbsolutePath());
-            System.out.println("Found ar tool: " + arCompilerRes.getTool().getAbsolutePath());
-            System.out.println("Found objcopy tool: " + objcopyCompilerRes.getTool().getAbsolutePath());
-            System.out.println("Found strip tool: " + stripCompilerRes.getTool().getAbsolutePath());
-
-            // Here's the hard part, we need to locate a compatible make
-            String makeExecutable = System.getenv().getOrDefault("MAKE_EXECUTABLE", "make");
-
-            String makefileGenerator;
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                project.exec(execSpec -> {
-                    execSpec.commandLine(makeExecutable, "-v");
-                    execSpec.setStandardOutput(baos);
-                });
-                try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(baos.toByteArray())))) {
-                    reader.readLine(); // First line specifies version
-                    String makeBuildSpec = reader.readLine(); // First line is "Built for arch-os"
-
-                    if (makeBuildSpec.toLowerCase().contains("mingw")) {
-                        makefileGenerator = "MinGW Makefiles";
-                    } else if (makeBuildSpec.toLowerCase().contains("msys")) {
-                        makefileGenerator = "MSYS Makefiles";
-                    } else if (makeBuildSpec.toLowerCase().contains("nux") || makeBuildSpec.toLowerCase().contains("nix")) {
-                        makefileGenerator = "Unix Makefiles";
-                    } else {
-                        throw new IllegalStateException("Unknown make specification, \"" + makeBuildSpec + "\" at path \"" + makeExecutable + "\".");
-                    }
-                }
-            } catch (IOException e) {
-                throw new IllegalStateException("Could not execute make at path \"" + makeExecutable + "\".", e);
+            String generator;
+            String makeExecutable;
+            if (extension.getGenerator().isPresent()) {
+                generator = extension.getGenerator().get();
+                makeExecutable = isNinjaGenerator(generator)
+                        ? extension.getNinjaExecutable().get()
+                        : extension.getMakeExecutable().get();
+            } else {
+                // Here's the hard part, we need to locate a compatible make
+                makeExecutable = extension.getMakeExecutable().get();
+                generator = ToolChainProbe.makefileGenerator(probeCacheDirectory(gradleUserHome), makeExecutable, searchPath,
+                        () -> detectMakefileGenerator(execOperations, makeExecutable));
             }
 
-            // Find arguments we need to extract from our c compiler / cpp compiler / linker
-            final AtomicReference<CommandLineToolContext> cppToolContext = new AtomicReference<>();
-            final AtomicReference<CommandLineToolContext> cToolContext = new AtomicReference<>();
-            final AtomicReference<CommandLineToolContext> linkerToolContext = new AtomicReference<>();
-            try {
-                Field rawCompiler = VersionAwareCompiler.class.getDeclaredField("compiler");
-                rawCompiler.setAccessible(true);
-                Field outputCompiler = OutputCleaningCompiler.class.getDeclaredField("compiler");
-                outputCompiler.setAccessible(true);
-
-                Object cppCompiler = outputCompiler.get(rawCompiler.get(platformToolProvider.newCompiler(CppCompileSpec.class)));
-                Object cCompiler = outputCompiler.get(rawCompiler.get(platformToolProvider.newCompiler(CCompileSpec.class)));
-                Object linker = rawCompiler.get(platformToolProvider.newCompiler(LinkerSpec.class));
-
-                Field invocationContext = AbstractCompiler.class.getDeclaredField("invocationContext");
-                invocationContext.setAccessible(true);
-
-                cppToolContext.set((CommandLineToolContext) invocationContext.get(cppCompiler));
-                cToolContext.set((CommandLineToolContext) invocationContext.get(cCompiler));
-                linkerToolContext.set((CommandLineToolContext) invocationContext.get(linker));
-            } catch (NoSuchFieldException | IllegalAccessException e) {
-                throw new IllegalStateException("Could not access AbstractCompiler Internals, ", e);
-            }
+            LOGGER.info("Using generator {}", generator);
 
             // Get CMAKE_SYSTEM_NAME variable
             String cmakeSystemName = null;
@@ -153,39 +112,155 @@ public class CMakeGenerator {
                 cmakeSystemName = "Darwin";
             }
 
+            // Everything describing the toolchain goes in a toolchain file shared by every build directory using it,
+            // which lets them share compiler detection results too
+            File toolchainFile = CMakeToolchainFile.write(toolchainCacheDirectory(gradleUserHome), createToolchainFile(cmakeSystemName, probe));
+            LOGGER.info("Using toolchain file {}", toolchainFile.getAbsolutePath());
+
             ArrayList<String> cli = new ArrayList<>(List.of(cmakeExecutable,
-                    "-G", makefileGenerator,
-                    "-DCMAKE_SYSTEM_NAME=" + cmakeSystemName,
-                    "-DCMAKE_SYSTEM_VERSION=1",
-                    "-DCMAKE_MAKE_PROGRAM=" + makeExecutable.replace('\\', '/'),
-                    "-DCMAKE_AR=" + arCompilerRes.getTool().getAbsolutePath().replace('\\', '/'),
-                    "-DCMAKE_C_COMPILER=" + cCompilerRes.getTool().getAbsolutePath().replace('\\', '/'),
-                    "-DCMAKE_C_FLAGS=" + formatToolArgs(cppToolContext.get().getArgAction()).replace('\\', '/'),
-                    "-DCMAKE_C_COMPILER_AR=" + arCompilerRes.getTool().getAbsolutePath().replace('\\', '/'),
-                    "-DCMAKE_C_ARCHIVE_FINISH=<CMAKE_AR> -s <TARGET>",
-                    "-DCMAKE_CXX_COMPILER=" + cppCompilerRes.getTool().getAbsolutePath().replace('\\', '/'),
-                    "-DCMAKE_CXX_FLAGS=" + formatToolArgs(cToolContext.get().getArgAction()).replace('\\', '/'),
-                    "-DCMAKE_CXX_COMPILER_AR=" + arCompilerRes.getTool().getAbsolutePath().replace('\\', '/'),
-                    "-DCMAKE_CXX_ARCHIVE_FINISH=<CMAKE_AR> -s <TARGET>",
-                    "-DCMAKE_OBJCOPY=" + objcopyCompilerRes.getTool().getAbsolutePath().replace('\\', '/'),
-                    "-DCMAKE_STRIP=" + stripCompilerRes.getTool().getAbsolutePath().replace('\\', '/'),
-                    "-DCMAKE_BUILD_TYPE=" + capitalize(buildType)));
+                    "-G", generator,
+                    "-DCMAKE_TOOLCHAIN_FILE=" + toolchainFile.getAbsolutePath().replace('\\', '/'),
+                    "-DCMAKE_MAKE_PROGRAM=" + makeExecutable.replace('\\', '/')));
 
+            // Launchers are given as a list, the timing launcher going first so that it times the compiler launcher too
+            List<String> launchers = new ArrayList<>();
+            if (extension.getRecordBuildTimings().get() && !isNinjaGenerator(generator) && CMakeBuildTimings.canUseLauncher()) {
+                String timingLauncher = CMakeBuildTimings.writeLauncher(timingLauncherDirectory(gradleUserHome)).getAbsolutePath();
+                LOGGER.info("Timing compiles and links with {}", timingLauncher);
+                launchers.add(timingLauncher);
+                // Linker launchers need CMake 3.21, older versions just don't time links
+                cli.add("-DCMAKE_C_LINKER_LAUNCHER=" + timingLauncher);
+                cli.add("-DCMAKE_CXX_LINKER_LAUNCHER=" + timingLauncher);
+            }
+            if (extension.getUseCompilerLauncher().get() && extension.getCompilerLauncher().isPresent()) {
+                String launcher = extension.getCompilerLauncher().get().replace('\\', '/');
+                LOGGER.info("Using compiler launcher {}", launcher);
+                launchers.add(launcher);
+            }
+            if (!launchers.isEmpty()) {
+                cli.add("-DCMAKE_C_COMPILER_LAUNCHER=" + String.join(";", launchers));
+                cli.add("-DCMAKE_CXX_COMPILER_LAUNCHER=" + String.join(";", launchers));
+            }
+
+            // Multi-config generators produce every configuration from one configure, and ignore CMAKE_BUILD_TYPE
+            if (!isMultiConfig(extension, toolChain)) {
+                cli.add("-DCMAKE_BUILD_TYPE=" + capitalize(buildType));
+            }
+
+            cli.addAll(extraArguments);
             extension.getArguments().execute(cli);
 
             cli.addAll(List.of("--no-warn-unused-cli",
-                    project.getRootDir().getAbsolutePath().replace('\\', '/')));
+                    sourceDirectory.toAbsolutePath().toString().replace('\\', '/')));
+
+            return new ConfigureCommand(cli, probe.getTools(), toolchainFile);
+        }
+    }
 
-            project.exec(execSpec -> {
-                execSpec.setWorkingDir(outputDirectory);
-                execSpec.commandLine(cli);
+    private static String createToolchainFile(String cmakeSystemName, ToolChainProbe probe) {
+        String archiver = CMakeToolchainFile.quote(probe.getArchiver().getAbsolutePath().replace('\\', '/'));
+
+        List<String> lines = List.of(
+                "# Generated by gradle-use-cmake-library",
+                "set(CMAKE_SYSTEM_NAME " + cmakeSystemName + ")",
+                "set(CMAKE_SYSTEM_VERSION 1)",
+                "",
+                "set(CMAKE_C_COMPILER " + CMakeToolchainFile.quote(probe.getCCompiler().getAbsolutePath().replace('\\', '/')) + ")",
+                "set(CMAKE_CXX_COMPILER " + CMakeToolchainFile.quote(probe.getCppCompiler().getAbsolutePath().replace('\\', '/')) + ")",
+                "set(CMAKE_C_FLAGS_INIT " + CMakeToolchainFile.quote(probe.getCCompilerArgs().replace('\\', '/')) + ")",
+                "set(CMAKE_CXX_FLAGS_INIT " + CMakeToolchainFile.quote(probe.getCppCompilerArgs().replace('\\', '/')) + ")",
+                "",
+                "set(CMAKE_AR " + archiver + " CACHE FILEPATH \"Archiver\")",
+                "set(CMAKE_C_COMPILER_AR " + archiver + " CACHE FILEPATH \"C archiver\")",
+                "set(CMAKE_CXX_COMPILER_AR " + archiver + " CACHE FILEPATH \"C++ archiver\")",
+                "set(CMAKE_C_ARCHIVE_FINISH \"<CMAKE_AR> -s <TARGET>\")",
+                "set(CMAKE_CXX_ARCHIVE_FINISH \"<CMAKE_AR> -s <TARGET>\")",
+                "set(CMAKE_OBJCOPY " + CMakeToolchainFile.quote(probe.getObjcopy().getAbsolutePath().replace('\\', '/')) + " CACHE FILEPATH \"objcopy\")",
+                "set(CMAKE_STRIP " + CMakeToolchainFile.quote(probe.getStrip().getAbsolutePath().replace('\\', '/')) + " CACHE FILEPATH \"strip\")");
+        return String.join(System.lineSeparator(), lines) + System.lineSeparator();
+    }
+
+    private static boolean isNinjaGenerator(String generator) {
+        return generator.startsWith("Ninja");
+    }
+
+    /**
+     * Whether builds generated for this toolchain contain every configuration, rather than just the one given by CMAKE_BUILD_TYPE.
+     */
+    public static boolean isMultiConfig(CMakeExtension extension, NativeToolChain toolChain) {
+        return toolChain instanceof VisualCppToolChain || "Ninja Multi-Config".equals(extension.getGenerator().getOrNull());
+    }
+
+    private static String detectMakefileGenerator(ExecOperations execOperations, String makeExecutable) {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            execOperations.exec(execSpec -> {
+                execSpec.commandLine(makeExecutable, "-v");
+                execSpec.setStandardOutput(baos);
             });
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(baos.toByteArray())))) {
+                reader.readLine(); // First line specifies version
+                String makeBuildSpec = reader.readLine(); // First line is "Built for arch-os"
+
+                if (makeBuildSpec.toLowerCase().contains("mingw")) {
+                    return "MinGW Makefiles";
+                } else if (makeBuildSpec.toLowerCase().contains("msys")) {
+                    return "MSYS Makefiles";
+                } else if (makeBuildSpec.toLowerCase().contains("nux") || makeBuildSpec.toLowerCase().contains("nix")) {
+                    return "Unix Makefiles";
+                } else {
+                    throw new IllegalStateException("Unknown make specification, \"" + makeBuildSpec + "\" at path \"" + makeExecutable + "\".");
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not execute make at path \"" + makeExecutable + "\".", e);
         }
     }
 
-    private static String formatToolArgs(Action<List<String>> argAction) {
-        List<String> args = new ArrayList<>();
-        argAction.execute(args);
-        return String.join(" ", args);
+    private static ExecOperations execOperations(Project project) {
+        return ((ProjectInternal) project).getServices().get(ExecOperations.class);
+    }
+
+    private static Path toolchainCacheDirectory(Path gradleUserHome) {
+        return gradleUserHome.resolve("caches").resolve("cmake-toolchains");
+    }
+
+    private static Path timingLauncherDirectory(Path gradleUserHome) {
+        return gradleUserHome.resolve("caches").resolve("cmake-timing-launcher");
+    }
+
+    private static Path probeCacheDirectory(Path gradleUserHome) {
+        return gradleUserHome.resolve("caches").resolve("cmake-toolchain-probes");
+    }
+
+    /**
+     * A CMake configure invocation, along with the toolchain binaries and toolchain file it was derived from.
+     */
+    public static class ConfigureCommand {
+        private final List<String> commandLine;
+        private final List<File> tools;
+        @Nullable
+        private final File toolchainFile;
+
+        public ConfigureCommand(List<String> commandLine, List<File> tools, @Nullable File toolchainFile) {
+            this.commandLine = commandLine;
+            this.tools = tools;
+            this.toolchainFile = toolchainFile;
+        }
+
+        public List<String> getCommandLine() {
+            return commandLine;
+        }
+
+        public List<File> getTools() {
+            return tools;
+        }
+
+        /**
+         * The toolchain file passed with {@code CMAKE_TOOLCHAIN_FILE}, if any.
+         */
+        @Nullable
+        public File getToolchainFile() {
+            return toolchainFile;
+        }
     }
 }
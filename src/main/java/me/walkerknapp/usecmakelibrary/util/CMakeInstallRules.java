@@ -0,0 +1,97 @@
+package me.walkerknapp.usecmakelibrary.util;
+
+import com.dslplatform.json.DslJson;
+import com.dslplatform.json.runtime.Settings;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The install rules of a configuration, read from the directory replies of its codemodel. These name the install
+ * component of every rule and the target a rule installs, so that only some targets can be built and installed.
+ *
+ * Directory replies only list install rules from CMake 3.22 on, so older versions have none to read.
+ */
+public class CMakeInstallRules {
+    private static final DslJson<Object> JSON = new DslJson<>(Settings.withRuntime().includeServiceLoader());
+
+    public static final String TARGET_TYPE = "target";
+
+    /**
+     * Reads every install rule of the configuration {@code configurationName} of {@code buildDirectory}, or nothing
+     * if the CMake that generated it does not report install rules.
+     */
+    public static Optional<List<Installer>> read(Path buildDirectory, String configurationName) {
+        String codeModelFile = CMakeFileApi.latestReplyFile(buildDirectory, "codemodel-v2-*.json");
+        if (codeModelFile == null) {
+            return Optional.empty();
+        }
+        Path replyDirectory = CMakeFileApi.replyDirectory(buildDirectory);
+
+        CodeModelReply codeModel = read(replyDirectory.resolve(codeModelFile), CodeModelReply.class);
+        Configuration configuration = codeModel.configurations == null ? null : codeModel.configurations.stream()
+                .filter(c -> c.name.equalsIgnoreCase(configurationName))
+                .findFirst()
+                .orElse(null);
+        if (configuration == null || configuration.directories == null) {
+            return Optional.empty();
+        }
+
+        List<Installer> installers = new ArrayList<>();
+        for (Directory directory : configuration.directories) {
+            if (directory.jsonFile == null) {
+                return Optional.empty();
+            }
+            DirectoryReply reply = read(replyDirectory.resolve(directory.jsonFile), DirectoryReply.class);
+            if (reply.installers == null) {
+                return Optional.empty();
+            }
+            installers.addAll(reply.installers);
+        }
+        return Optional.of(installers);
+    }
+
+    private static <T> T read(Path replyFile, Class<T> type) {
+        try (InputStream input = Files.newInputStream(replyFile)) {
+            T reply = JSON.deserialize(type, input);
+            if (reply == null) {
+                throw new IOException("Empty reply");
+            }
+            return reply;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read reply " + replyFile, e);
+        }
+    }
+
+    public static class CodeModelReply {
+        public List<Configuration> configurations;
+    }
+
+    public static class Configuration {
+        public String name;
+        public List<Directory> directories;
+    }
+
+    public static class Directory {
+        public String jsonFile;
+    }
+
+    public static class DirectoryReply {
+        public List<Installer> installers;
+    }
+
+    public static class Installer {
+        public String component;
+        public String type;
+        /**
+         * The id of the installed target, for rules of {@link #TARGET_TYPE}.
+         */
+        public String targetId;
+    }
+}
@@ -0,0 +1,108 @@
+package me.walkerknapp.usecmakelibrary.util;
+
+import com.dslplatform.json.DslJson;
+import com.dslplatform.json.runtime.Settings;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The parts of a codemodel target reply that the plugin uses.
+ *
+ * Target replies are streamed straight into this projection, so the sections we don't use (backtraces, compile
+ * commands, dependencies, link fragments and the like) are skipped over by the parser without ever being built in
+ * memory. This keeps reading the targets of very large projects cheap in both time and heap.
+ */
+public class CMakeTargetReply {
+    private static final DslJson<Object> JSON = new DslJson<>(Settings.withRuntime().includeServiceLoader());
+
+    public String name;
+    public String id;
+    public String type;
+    public Install install;
+    public List<Artifact> artifacts;
+    public List<Source> sources;
+    public List<CompileGroup> compileGroups;
+    public List<Dependency> dependencies;
+
+    /**
+     * Reads the target replies named by {@code jsonFiles}, relative to the reply directory of {@code buildDirectory},
+     * in parallel. The replies are returned in the order they were named.
+     */
+    public static List<CMakeTargetReply> readAll(Path buildDirectory, List<String> jsonFiles) {
+        Path replyDirectory = CMakeFileApi.replyDirectory(buildDirectory);
+        return jsonFiles.parallelStream()
+                .map(jsonFile -> read(replyDirectory.resolve(jsonFile)))
+                .collect(Collectors.toList());
+    }
+
+    private static CMakeTargetReply read(Path replyFile) {
+        try (InputStream input = Files.newInputStream(replyFile)) {
+            CMakeTargetReply reply = JSON.deserialize(CMakeTargetReply.class, input);
+            if (reply == null) {
+                throw new IOException("Empty target reply");
+            }
+            return reply;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read target reply " + replyFile, e);
+        }
+    }
+
+    /**
+     * Present if the target is installed. Where it is installed to isn't needed, so nothing of it is kept.
+     */
+    public static class Install {
+    }
+
+    public static class Artifact {
+        public String path;
+
+        /**
+         * What this artifact of a library target is used as, going by its file name.
+         */
+        public Kind kind() {
+            return Kind.of(path);
+        }
+    }
+
+    /**
+     * What an artifact of a library target is used as: a library loaded at runtime, or one linked against, which is
+     * the import library of a DLL for shared libraries.
+     */
+    public enum Kind {
+        RUNTIME,
+        LINK,
+        OTHER;
+
+        public static Kind of(String path) {
+            if (path.endsWith(".dll") || path.endsWith(".so")) {
+                return RUNTIME;
+            } else if (path.endsWith(".lib") || path.endsWith(".a")) {
+                return LINK;
+            }
+            return OTHER;
+        }
+    }
+
+    public static class Source {
+        public String path;
+        public boolean isGenerated;
+    }
+
+    public static class Dependency {
+        public String id;
+    }
+
+    public static class CompileGroup {
+        public List<Include> includes;
+    }
+
+    public static class Include {
+        public String path;
+    }
+}
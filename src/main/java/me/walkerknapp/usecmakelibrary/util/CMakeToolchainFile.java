@@ -0,0 +1,186 @@
+package me.walkerknapp.usecmakelibrary.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * CMake toolchain files, stored by the hash of their contents so that every build directory configured for the same
+ * toolchain points at the same file, along with the compiler detection results of build directories configured with
+ * them.
+ *
+ * CMake keeps what it learns about each compiler (its identity, ABI and implicit directories) in
+ * {@code CMakeFiles/<version>/}, and skips detecting the compiler again when it finds those files in a build
+ * directory. Saving them once a toolchain file has been configured, and seeding new build directories with them,
+ * lets every further configure with the toolchain skip the slowest part of a fresh configure.
+ *
+ * The toolchain file only names the tools, so results are saved by the contents of the tools too. Otherwise a compiler
+ * upgraded in place would be seeded with what was detected of the old one.
+ */
+public class CMakeToolchainFile {
+    private static final String TOOLCHAIN_FILE = "toolchain.cmake";
+    private static final String SEEDS = "seeds";
+
+    private static final Pattern VERSION_DIRECTORY = Pattern.compile("\\d+\\.\\d+.*");
+    private static final Pattern DETECTION_FILE = Pattern.compile("CMakeSystem\\.cmake|CMake\\w+Compiler\\.cmake|CMakeDetermineCompilerABI_\\w+\\.bin");
+
+    /**
+     * Writes a toolchain file with {@code contents} into {@code cacheDirectory}, or reuses one written before.
+     */
+    public static File write(Path cacheDirectory, String contents) {
+        Path directory = cacheDirectory.resolve(Hashing.hash(contents.getBytes(StandardCharsets.UTF_8)));
+        Path file = directory.resolve(TOOLCHAIN_FILE);
+        if (Files.isRegularFile(file)) {
+            return file.toFile();
+        }
+
+        try {
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, TOOLCHAIN_FILE, ".tmp");
+            Files.writeString(temporary, contents, StandardCharsets.UTF_8);
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write toolchain file " + file, e);
+        }
+        return file.toFile();
+    }
+
+    /**
+     * Quotes {@code value} as a CMake string argument.
+     */
+    public static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("$", "\\$") + "\"";
+    }
+
+    /**
+     * Writes a file named {@code name} into {@code buildDirectory} with the commands in {@code lines}, for CMake to
+     * include after the project's {@code project()} call, returning the configure arguments that include it.
+     */
+    public static List<String> writeProjectInclude(Path buildDirectory, String name, List<String> lines) {
+        List<String> allLines = new ArrayList<>();
+        allLines.add("# Generated by gradle-use-cmake-library");
+        allLines.addAll(lines);
+        allLines.add("");
+        String contents = String.join(System.lineSeparator(), allLines);
+
+        Path file = buildDirectory.resolve(name);
+        try {
+            // Rewriting an unchanged file would make CMake configure again on the next build
+            if (!Files.isRegularFile(file) || !Files.readString(file, StandardCharsets.UTF_8).equals(contents)) {
+                Files.createDirectories(buildDirectory);
+                Files.writeString(file, contents, StandardCharsets.UTF_8);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write " + file, e);
+        }
+        return List.of("-DCMAKE_PROJECT_INCLUDE=" + file.toAbsolutePath().toString().replace('\\', '/'));
+    }
+
+    /**
+     * Copies saved compiler detection results for {@code toolchainFile} and {@code tools} into a build directory that
+     * hasn't been configured yet. Build directories that already have results of their own are left alone.
+     */
+    public static void seedCompilerDetection(File toolchainFile, List<File> tools, Path buildDirectory) {
+        Path seeds = seedsDirectory(toolchainFile, tools);
+        Path cmakeFiles = buildDirectory.resolve("CMakeFiles");
+        if (!Files.isDirectory(seeds) || Files.exists(buildDirectory.resolve("CMakeCache.txt"))) {
+            return;
+        }
+
+        try {
+            for (Path seed : versionDirectories(seeds)) {
+                Path destination = cmakeFiles.resolve(seed.getFileName().toString());
+                if (Files.exists(destination)) {
+                    continue;
+                }
+                Files.createDirectories(destination);
+                for (Path file : detectionFiles(seed)) {
+                    Files.copy(file, destination.resolve(file.getFileName().toString()));
+                }
+            }
+        } catch (IOException e) {
+            // Without a seed, CMake just detects the compiler itself
+        }
+    }
+
+    /**
+     * Saves the compiler detection results of a build directory that has just been configured with
+     * {@code toolchainFile} and {@code tools}, for any CMake version that has none saved yet.
+     */
+    public static void saveCompilerDetection(File toolchainFile, List<File> tools, Path buildDirectory) {
+        Path seeds = seedsDirectory(toolchainFile, tools);
+        Path cmakeFiles = buildDirectory.resolve("CMakeFiles");
+        if (!Files.isDirectory(cmakeFiles)) {
+            return;
+        }
+
+        try {
+            for (Path versionDirectory : versionDirectories(cmakeFiles)) {
+                Path seed = seeds.resolve(versionDirectory.getFileName().toString());
+                List<Path> files = detectionFiles(versionDirectory);
+                if (Files.exists(seed) || files.isEmpty()) {
+                    continue;
+                }
+
+                // Save into a scratch directory first, so a partially saved seed is never used
+                Files.createDirectories(seeds);
+                Path scratch = Files.createTempDirectory(seeds, seed.getFileName().toString());
+                for (Path file : files) {
+                    Files.copy(file, scratch.resolve(file.getFileName().toString()));
+                }
+                try {
+                    Files.move(scratch, seed, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    // Another configure saved the same seed first
+                    deleteRecursively(scratch);
+                }
+            }
+        } catch (IOException e) {
+            // Not saving a seed only costs detecting the compiler again
+        }
+    }
+
+    private static Path seedsDirectory(File toolchainFile, List<File> tools) {
+        List<String> toolHashes = new ArrayList<>();
+        for (File tool : tools) {
+            toolHashes.add(tool.getName());
+            toolHashes.add(CMakeConfigureCache.toolHash(tool));
+        }
+        return toolchainFile.toPath().resolveSibling(SEEDS).resolve(Hashing.hash(toolHashes));
+    }
+
+    private static List<Path> versionDirectories(Path directory) throws IOException {
+        List<Path> versions = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                path -> Files.isDirectory(path) && VERSION_DIRECTORY.matcher(path.getFileName().toString()).matches())) {
+            stream.forEach(versions::add);
+        }
+        return versions;
+    }
+
+    private static List<Path> detectionFiles(Path versionDirectory) throws IOException {
+        try (Stream<Path> files = Files.list(versionDirectory)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(file -> DETECTION_FILE.matcher(file.getFileName().toString()).matches())
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted((a, b) -> b.compareTo(a)).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package me.walkerknapp.usecmakelibrary.util;
+
+import org.gradle.process.ExecOperations;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Support for compiler launchers such as ccache and sccache, which CMake puts in front of every compile through
+ * {@code CMAKE_<LANG>_COMPILER_LAUNCHER}.
+ */
+public class CompilerLauncher {
+    private static final List<String> KNOWN_LAUNCHERS = List.of("sccache", "ccache");
+
+    private static final Pattern SCCACHE_HITS = Pattern.compile("^Cache hits\\s+(\\d+)");
+    private static final Pattern SCCACHE_MISSES = Pattern.compile("^Cache misses\\s+(\\d+)");
+
+    /**
+     * Finds the first known launcher on the given {@code PATH}.
+     */
+    public static Optional<String> detect(String path) {
+        for (String launcher : KNOWN_LAUNCHERS) {
+            for (String directory : path.split(File.pathSeparator)) {
+                for (String name : List.of(launcher, launcher + ".exe")) {
+                    File candidate = new File(directory, name);
+                    if (candidate.isFile() && candidate.canExecute()) {
+                        return Optional.of(candidate.getAbsolutePath());
+                    }
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static boolean isSccache(String launcher) {
+        return new File(launcher).getName().startsWith("sccache");
+    }
+
+    /**
+     * The environment that points the launcher at {@code cacheDirectory}, limited to {@code maxSize} (such as "5G").
+     * sccache only reads these when its server starts, so a server that is already running keeps its own settings.
+     */
+    public static Map<String, String> environment(String launcher, File cacheDirectory, String maxSize) {
+        if (isSccache(launcher)) {
+            return Map.of("SCCACHE_DIR", cacheDirectory.getAbsolutePath(), "SCCACHE_CACHE_SIZE", maxSize);
+        } else {
+            return Map.of("CCACHE_DIR", cacheDirectory.getAbsolutePath(), "CCACHE_MAXSIZE", maxSize);
+        }
+    }
+
+    /**
+     * Reads the launcher's cumulative hit and miss counts, if it reports them in a form we understand.
+     */
+    public static Optional<Stats> readStats(ExecOperations execOperations, String launcher, Map<String, String> environment) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        boolean sccache = isSccache(launcher);
+        int exitValue = execOperations.exec(execSpec -> {
+            execSpec.environment(environment);
+            // ccache 4 and newer print machine-readable statistics with --print-stats
+            execSpec.commandLine(launcher, sccache ? "--show-stats" : "--print-stats");
+            execSpec.setStandardOutput(output);
+            execSpec.setErrorOutput(new ByteArrayOutputStream());
+            execSpec.setIgnoreExitValue(true);
+        }).getExitValue();
+
+        if (exitValue != 0) {
+            return Optional.empty();
+        }
+
+        String text = output.toString(StandardCharsets.UTF_8);
+        return sccache ? parseSccacheStats(text) : parseCcacheStats(text);
+    }
+
+    private static Optional<Stats> parseSccacheStats(String text) {
+        Long hits = null;
+        Long misses = null;
+        try (BufferedReader reader = new BufferedReader(new StringReader(text))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher hitMatcher = SCCACHE_HITS.matcher(line);
+                Matcher missMatcher = SCCACHE_MISSES.matcher(line);
+                if (hitMatcher.find()) {
+                    hits = Long.parseLong(hitMatcher.group(1));
+                } else if (missMatcher.find()) {
+                    misses = Long.parseLong(missMatcher.group(1));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return hits != null && misses != null ? Optional.of(new Stats(hits, misses)) : Optional.empty();
+    }
+
+    private static Optional<Stats> parseCcacheStats(String text) {
+        long hits = 0;
+        Long misses = null;
+        for (String line : text.split("\\R")) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length != 2) {
+                continue;
+            }
+            try {
+                switch (fields[0]) {
+                    case "direct_cache_hit":
+                    case "preprocessed_cache_hit":
+                        hits += Long.parseLong(fields[1]);
+                        break;
+                    case "cache_miss":
+                        misses = Long.parseLong(fields[1]);
+                        break;
+                }
+            } catch (NumberFormatException e) {
+                // Not a counter
+            }
+        }
+        return misses != null ? Optional.of(new Stats(hits, misses)) : Optional.empty();
+    }
+
+    /**
+     * Cumulative compile counts of a launcher's cache.
+     */
+    public static class Stats {
+        private final long hits;
+        private final long misses;
+
+        public Stats(long hits, long misses) {
+            this.hits = hits;
+            this.misses = misses;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * The compiles counted since {@code before} was read.
+         */
+        public Stats since(Stats before) {
+            return new Stats(hits - before.hits, misses - before.misses);
+        }
+    }
+}
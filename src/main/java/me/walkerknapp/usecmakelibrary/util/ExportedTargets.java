@@ -0,0 +1,58 @@
+package me.walkerknapp.usecmakelibrary.util;
+
+import org.gradle.api.InvalidUserDataException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The library targets to publish, given by exact names, or by regular expressions prefixed with {@value #REGEX_PREFIX}.
+ * Names are never treated as regular expressions, as target names such as {@code opus++} are not valid ones.
+ */
+public class ExportedTargets implements Predicate<String> {
+    public static final String REGEX_PREFIX = "regex:";
+
+    private final Set<String> names = new HashSet<>();
+    private final List<Pattern> patterns = new ArrayList<>();
+
+    private ExportedTargets() {
+    }
+
+    /**
+     * Compiles {@code entries} once, failing with the offending entry if one is not a valid regular expression.
+     */
+    public static ExportedTargets of(Set<String> entries) {
+        ExportedTargets exportedTargets = new ExportedTargets();
+        for (String entry : entries) {
+            if (!entry.startsWith(REGEX_PREFIX)) {
+                exportedTargets.names.add(entry);
+                continue;
+            }
+            try {
+                exportedTargets.patterns.add(Pattern.compile(entry.substring(REGEX_PREFIX.length())));
+            } catch (PatternSyntaxException e) {
+                throw new InvalidUserDataException("The exported target pattern '" + entry + "' is not a valid regular expression: "
+                        + e.getDescription(), e);
+            }
+        }
+        return exportedTargets;
+    }
+
+    /**
+     * Whether only some targets are exported, rather than every installable library target.
+     */
+    public boolean isSelective() {
+        return !names.isEmpty() || !patterns.isEmpty();
+    }
+
+    @Override
+    public boolean test(String targetName) {
+        return !isSelective() || names.contains(targetName)
+                || patterns.stream().anyMatch(pattern -> pattern.matcher(targetName).matches());
+    }
+}
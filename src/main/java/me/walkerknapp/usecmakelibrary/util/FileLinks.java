@@ -0,0 +1,78 @@
+package me.walkerknapp.usecmakelibrary.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class FileLinks {
+    /**
+     * Replaces every symbolic link under {@code directory} that points into one of {@code trees} with a hard link
+     * to the file it ends up at, or with a copy of it when a hard link can't be made (such as across file systems).
+     * Links within {@code directory} itself, such as the namelinks of shared libraries, are kept as they are, as
+     * are links anywhere else.
+     */
+    public static void materializeSymbolicLinks(Path directory, Collection<Path> trees) {
+        Path prefix;
+        List<Path> realTrees = new ArrayList<>();
+        List<Path> links;
+        try {
+            prefix = directory.toRealPath();
+            for (Path tree : trees) {
+                if (Files.exists(tree)) {
+                    realTrees.add(tree.toRealPath());
+                }
+            }
+            // Linked directories aren't walked into, they are materialized whole
+            try (Stream<Path> paths = Files.walk(directory)) {
+                links = paths.filter(Files::isSymbolicLink).collect(Collectors.toList());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not walk " + directory, e);
+        }
+
+        for (Path link : links) {
+            try {
+                Path target;
+                try {
+                    // The final target, so a link to a link that hasn't been materialized yet is never hard linked
+                    target = link.toRealPath();
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                if (target.startsWith(prefix) || realTrees.stream().noneMatch(target::startsWith)) {
+                    continue;
+                }
+                Files.delete(link);
+                linkOrCopy(target, link);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not materialize link " + link, e);
+            }
+        }
+    }
+
+    private static void linkOrCopy(Path source, Path destination) throws IOException {
+        if (Files.isDirectory(source)) {
+            Files.createDirectories(destination);
+            try (Stream<Path> children = Files.list(source)) {
+                for (Path child : children.collect(Collectors.toList())) {
+                    linkOrCopy(child.toRealPath(), destination.resolve(child.getFileName().toString()));
+                }
+            }
+            return;
+        }
+
+        try {
+            Files.createLink(destination, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source, destination, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+}
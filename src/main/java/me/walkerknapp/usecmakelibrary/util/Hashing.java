@@ -0,0 +1,79 @@
+package me.walkerknapp.usecmakelibrary.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * The SHA-256 hashes, as hex, that name and fingerprint everything this plugin caches.
+ */
+public class Hashing {
+    private final MessageDigest digest;
+
+    private Hashing() {
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Starts a hash that values are added to one at a time.
+     */
+    public static Hashing start() {
+        return new Hashing();
+    }
+
+    /**
+     * The hash of {@code values}, each kept apart from the next so that {@code ["ab", "c"]} and {@code ["a", "bc"]}
+     * hash differently.
+     */
+    public static String hash(List<String> values) {
+        Hashing hashing = start();
+        values.forEach(hashing::putString);
+        return hashing.finish();
+    }
+
+    /**
+     * The hash of {@code bytes} alone.
+     */
+    public static String hash(byte[] bytes) {
+        return start().putBytes(bytes).finish();
+    }
+
+    /**
+     * The hash of the contents of {@code file}.
+     */
+    public static String hash(Path file) throws IOException {
+        return start().putFile(file).finish();
+    }
+
+    public Hashing putString(String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        return this;
+    }
+
+    public Hashing putBytes(byte[] bytes) {
+        digest.update(bytes);
+        return this;
+    }
+
+    public Hashing putFile(Path file) throws IOException {
+        digest.update(Files.readAllBytes(file));
+        return this;
+    }
+
+    public String finish() {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,108 @@
+package me.walkerknapp.usecmakelibrary.util;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.nativeplatform.toolchain.Clang;
+import org.gradle.nativeplatform.toolchain.Gcc;
+import org.gradle.nativeplatform.toolchain.NativeToolChain;
+import org.gradle.nativeplatform.toolchain.internal.PlatformToolProvider;
+import org.gradle.nativeplatform.toolchain.internal.ToolType;
+import org.gradle.nativeplatform.toolchain.internal.tools.CommandLineToolSearchResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Builds with link-time optimization, whose static libraries hold the compiler's intermediate representation rather
+ * than machine code, so that the link-time optimization of a consumer can optimize across them.
+ *
+ * Archiving such objects needs an archiver that can read them to index their symbols: the gcc-ar and gcc-ranlib
+ * wrappers of GCC, or llvm-ar and llvm-ranlib for Clang. CMake would find these itself, but the toolchain file names
+ * the toolchain's plain archiver, so they are found next to the toolchain's compiler and given to CMake's
+ * link-time optimized archive rules directly.
+ */
+public class LinkTimeOptimization {
+    private static final Logger LOGGER = Logging.getLogger(LinkTimeOptimization.class);
+
+    private static final String PROJECT_INCLUDE = "gradle-lto.cmake";
+    private static final List<String> LANGUAGES = List.of("C", "CXX");
+
+    /**
+     * Whether builds with {@code toolChain} can be link-time optimized through this plugin.
+     */
+    public static boolean isSupported(NativeToolChain toolChain) {
+        return toolChain instanceof Gcc || toolChain instanceof Clang;
+    }
+
+    /**
+     * The configure arguments that link-time optimize every target of the build in {@code buildDirectory}, archiving
+     * with the archiver matching the compiler {@code platformToolProvider} locates.
+     */
+    public static List<String> configureArguments(NativeToolChain toolChain, PlatformToolProvider platformToolProvider, Path buildDirectory) {
+        List<String> arguments = new ArrayList<>(List.of(
+                "-DCMAKE_INTERPROCEDURAL_OPTIMIZATION=ON",
+                // Projects requiring CMake older than 3.9 would otherwise have the property ignored
+                "-DCMAKE_POLICY_DEFAULT_CMP0069=NEW"));
+
+        CommandLineToolSearchResult compiler = platformToolProvider.locateTool(ToolType.C_COMPILER);
+        Optional<File> archiver = compiler.isAvailable() ? sibling(compiler.getTool(), toolChain instanceof Clang ? "llvm-ar" : "gcc-ar") : Optional.empty();
+        Optional<File> ranlib = compiler.isAvailable() ? sibling(compiler.getTool(), toolChain instanceof Clang ? "llvm-ranlib" : "gcc-ranlib") : Optional.empty();
+        if (archiver.isEmpty() || ranlib.isEmpty()) {
+            LOGGER.warn("Could not find the link-time optimization archiver of {}, so its link-time optimized static libraries may have no symbol index.",
+                    toolChain.getDisplayName());
+            return arguments;
+        }
+
+        // The rules have to be replaced after project(), as compiler detection bakes the archiver into them
+        String archiverPath = CMakeToolchainFile.quote(archiver.get().getAbsolutePath().replace('\\', '/'));
+        String ranlibPath = CMakeToolchainFile.quote(ranlib.get().getAbsolutePath().replace('\\', '/'));
+        List<String> lines = new ArrayList<>();
+        for (String language : LANGUAGES) {
+            lines.add("set(CMAKE_" + language + "_ARCHIVE_CREATE_IPO " + CMakeToolchainFile.quote(archiverPath + " cr <TARGET> <LINK_FLAGS> <OBJECTS>") + ")");
+            lines.add("set(CMAKE_" + language + "_ARCHIVE_APPEND_IPO " + CMakeToolchainFile.quote(archiverPath + " r <TARGET> <LINK_FLAGS> <OBJECTS>") + ")");
+            lines.add("set(CMAKE_" + language + "_ARCHIVE_FINISH_IPO " + CMakeToolchainFile.quote(ranlibPath + " <TARGET>") + ")");
+        }
+        arguments.addAll(CMakeToolchainFile.writeProjectInclude(buildDirectory, PROJECT_INCLUDE, lines));
+        return arguments;
+    }
+
+    /**
+     * The {@code tool} that belongs with {@code compiler}, keeping its target prefix and version suffix, such as
+     * x86_64-linux-gnu-gcc-ar-11 for x86_64-linux-gnu-gcc-11, or llvm-ar-14 for clang-14.
+     */
+    private static Optional<File> sibling(File compiler, String tool) {
+        String name = compiler.getName();
+        String compilerName = tool.startsWith("gcc") ? "gcc" : "clang";
+        int index = name.lastIndexOf(compilerName);
+        if (index < 0) {
+            return Optional.empty();
+        }
+        // LLVM's tools don't carry the target prefix clang may have
+        String prefix = tool.startsWith("gcc") ? name.substring(0, index) : "";
+        String siblingName = prefix + tool + name.substring(index + compilerName.length());
+
+        // Compilers on the path are often links into the toolchain's own directory, which is where LLVM keeps its tools
+        Set<Path> directories = new LinkedHashSet<>();
+        directories.add(compiler.toPath().toAbsolutePath().getParent());
+        try {
+            directories.add(compiler.toPath().toRealPath().getParent());
+        } catch (IOException e) {
+            // Only look next to the compiler as it was found
+        }
+
+        for (Path directory : directories) {
+            Path candidate = directory.resolve(siblingName);
+            if (Files.isRegularFile(candidate)) {
+                return Optional.of(candidate.toFile());
+            }
+        }
+        return Optional.empty();
+    }
+}
@@ -0,0 +1,162 @@
+package me.walkerknapp.usecmakelibrary.util;
+
+import org.gradle.nativeplatform.toolchain.Clang;
+import org.gradle.nativeplatform.toolchain.Gcc;
+import org.gradle.nativeplatform.toolchain.NativeToolChain;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The compiler flags and profile handling of profile-guided optimization with GCC and Clang.
+ *
+ * An instrumented build writes raw profiles while a training workload runs against it. The raw profiles are merged
+ * into profile data, which an optimized build of the same sources is compiled with. The flags are added to every
+ * target through a file CMake includes after {@code project()}, rather than the toolchain's initial flags, so that
+ * CMake's compiler checks don't compile with profile data that doesn't exist yet.
+ */
+public class ProfileGuidedOptimization {
+    private static final String PROJECT_INCLUDE = "gradle-pgo.cmake";
+    private static final String PROFILE_STAMP = "gradle-pgo-profile";
+    private static final String CLANG_PROFILE_DATA = "default.profdata";
+
+    public enum Compiler {
+        GCC,
+        CLANG
+    }
+
+    /**
+     * The compiler family of {@code toolChain}, if it supports profile-guided optimization through this plugin.
+     */
+    public static Optional<Compiler> compilerOf(NativeToolChain toolChain) {
+        if (toolChain instanceof Clang) {
+            return Optional.of(Compiler.CLANG);
+        } else if (toolChain instanceof Gcc) {
+            return Optional.of(Compiler.GCC);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * The flags an instrumented build in {@code buildDirectory} is compiled and linked with, writing raw profiles to
+     * {@code rawProfileDirectory}.
+     */
+    public static List<String> generateFlags(Compiler compiler, Path rawProfileDirectory, Path buildDirectory) {
+        String profiles = cmakePath(rawProfileDirectory);
+        if (compiler == Compiler.CLANG) {
+            return List.of("-fprofile-generate=" + profiles);
+        }
+        // Profiles are named after the objects they are for, which only match between build directories without their prefix (GCC 11+)
+        return List.of("-fprofile-generate=" + profiles, "-fprofile-update=atomic", "-fprofile-prefix-path=" + cmakePath(buildDirectory));
+    }
+
+    /**
+     * The flags an optimized build in {@code buildDirectory} is compiled with, reading the merged profiles in
+     * {@code profileDirectory}.
+     */
+    public static List<String> useFlags(Compiler compiler, Path profileDirectory, Path buildDirectory) {
+        if (compiler == Compiler.CLANG) {
+            return List.of("-fprofile-use=" + cmakePath(profileDirectory.resolve(CLANG_PROFILE_DATA)),
+                    "-Wno-profile-instr-unprofiled", "-Wno-profile-instr-out-of-date");
+        }
+        // Code the training didn't reach is still optimized as usual, rather than for size (GCC 10+)
+        return List.of("-fprofile-use=" + cmakePath(profileDirectory), "-fprofile-partial-training",
+                "-fprofile-prefix-path=" + cmakePath(buildDirectory), "-Wno-missing-profile");
+    }
+
+    /**
+     * Writes the file that adds {@code compileFlags} and {@code linkFlags} to every target of the project configured
+     * in {@code buildDirectory}, returning the configure arguments that include it.
+     */
+    public static List<String> projectInclude(Path buildDirectory, List<String> compileFlags, List<String> linkFlags) {
+        List<String> lines = new ArrayList<>();
+        lines.add("add_compile_options(" + quoteAll(compileFlags) + ")");
+        if (!linkFlags.isEmpty()) {
+            lines.add("add_link_options(" + quoteAll(linkFlags) + ")");
+        }
+        return CMakeToolchainFile.writeProjectInclude(buildDirectory, PROJECT_INCLUDE, lines);
+    }
+
+    /**
+     * Merges the raw profiles in {@code rawProfileDirectory} into {@code profileDirectory}, returning the command that
+     * does so, if one is needed. GCC accumulates every run into the same profiles, so its profiles are just copied.
+     */
+    public static Optional<List<String>> mergeCommand(Compiler compiler, String profdataExecutable, Path rawProfileDirectory,
+                                                      Path profileDirectory) {
+        if (compiler == Compiler.GCC) {
+            return Optional.empty();
+        }
+
+        List<String> commandLine = new ArrayList<>(List.of(profdataExecutable, "merge",
+                "-output=" + profileDirectory.resolve(CLANG_PROFILE_DATA).toAbsolutePath()));
+        try (Stream<Path> files = Files.walk(rawProfileDirectory)) {
+            commandLine.addAll(files.filter(file -> file.getFileName().toString().endsWith(".profraw"))
+                    .map(file -> file.toAbsolutePath().toString())
+                    .sorted()
+                    .collect(Collectors.toList()));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not list raw profiles in " + rawProfileDirectory, e);
+        }
+        return Optional.of(commandLine);
+    }
+
+    /**
+     * Whether the build in {@code buildDirectory} was last built with different profile data than {@code stamp}, in
+     * which case its objects have to be compiled again, as CMake doesn't know they depend on the profile data.
+     */
+    public static boolean isProfileChanged(Path buildDirectory, String stamp) {
+        Path file = buildDirectory.resolve("CMakeFiles").resolve(PROFILE_STAMP);
+        try {
+            return !Files.isRegularFile(file) || !Files.readString(file, StandardCharsets.UTF_8).equals(stamp);
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Records that the build in {@code buildDirectory} was built with the profile data of {@code stamp}.
+     */
+    public static void recordProfile(Path buildDirectory, String stamp) {
+        Path file = buildDirectory.resolve("CMakeFiles").resolve(PROFILE_STAMP);
+        try {
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, stamp, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            // The next build just compiles everything again
+        }
+    }
+
+    /**
+     * A hash of the contents and names of the profile data in {@code profileDirectory}.
+     */
+    public static String stamp(Path profileDirectory) {
+        Hashing hashing = Hashing.start();
+        if (Files.isDirectory(profileDirectory)) {
+            try (Stream<Path> files = Files.walk(profileDirectory)) {
+                for (Path file : files.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                    hashing.putString(profileDirectory.relativize(file).toString());
+                    hashing.putFile(file);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read profile data in " + profileDirectory, e);
+            }
+        }
+        return hashing.finish();
+    }
+
+    private static String quoteAll(List<String> values) {
+        return values.stream().map(CMakeToolchainFile::quote).collect(Collectors.joining(" "));
+    }
+
+    private static String cmakePath(Path path) {
+        return path.toAbsolutePath().toString().replace('\\', '/');
+    }
+}
@@ -0,0 +1,481 @@
+package me.walkerknapp.usecmakelibrary.util;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.process.ExecOperations;
+import org.gradle.process.ExecResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A cache of CMake build directories, and copies of the sources they build, shared by every project and checkout on
+ * a machine.
+ *
+ * Build directories are named by the hash of everything that identifies a configure: the project, the target
+ * machine, the toolchain and the CMake arguments, but not the contents of the sources. Each has its own copy of the
+ * sources it configures from, which is synced from whichever checkout uses it next. Only files that changed are
+ * copied, so editing a source, or building another checkout of the same project, only recompiles what CMake's own
+ * dependency tracking says it must, rather than configuring and compiling from scratch.
+ *
+ * Entries are guarded by a lock file next to their build directory, held across processes while an entry is
+ * synced, configured or built, and are evicted least-recently-used first once they are too old or the cache grows
+ * too large.
+ */
+public class SharedBuildCache {
+    private static final String SOURCES = "sources";
+    private static final String BUILDS = "builds";
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final String MANIFEST_SUFFIX = ".files";
+    private static final String CLEANUP_MARKER = "cleanup.marker";
+    private static final Duration CLEANUP_INTERVAL = Duration.ofDays(1);
+
+    private static final Logger LOGGER = Logging.getLogger(SharedBuildCache.class);
+
+    // File locks are held per-process, so threads of this process are serialized separately
+    private static final Map<Path, ReentrantLock> PROCESS_LOCKS = new ConcurrentHashMap<>();
+
+    private final Path root;
+
+    public SharedBuildCache(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * The copy of the sources that {@code buildDirectory} configures from, kept up to date by {@link #syncSources}.
+     */
+    public static Path sourceDirectory(Path buildDirectory) {
+        return buildDirectory.getParent().resolveSibling(SOURCES).resolve(buildDirectory.getFileName());
+    }
+
+    /**
+     * Brings the copy of the sources of {@code buildDirectory} up to date with the source tree at
+     * {@code sourceDirectory}, leaving out the given excluded directories. The build directory must be locked.
+     *
+     * Files whose size and modification time are the same as when this checkout was last synced are taken to be
+     * unchanged, and only the others are hashed. Files are only copied if their contents changed, and their copies are
+     * stamped with the time of the sync, so CMake sees them as newer than anything built from the previous contents.
+     *
+     * In a git work tree, only the files git tracks, or would track as they aren't ignored, are synced, which
+     * leaves out IDE files, scratch files and other outputs. Elsewhere every file outside of hidden directories is.
+     */
+    public static void syncSources(ExecOperations execOperations, Path sourceDirectory, Collection<Path> excluded, Path buildDirectory) {
+        Path copy = sourceDirectory(buildDirectory);
+        Path manifestFile = copy.resolveSibling(copy.getFileName() + MANIFEST_SUFFIX);
+        String checkout = sourceDirectory.toAbsolutePath().normalize().toString();
+
+        Set<Path> excludedPaths = excluded.stream().map(path -> path.toAbsolutePath().normalize()).collect(Collectors.toSet());
+        List<Path> files = listTrackedFiles(execOperations, sourceDirectory)
+                .orElseGet(() -> listSourceFiles(sourceDirectory)).stream()
+                .filter(file -> excludedPaths.stream().noneMatch(file.toAbsolutePath().normalize()::startsWith))
+                .collect(Collectors.toList());
+
+        try {
+            Manifest previous = Manifest.read(manifestFile);
+            // Sizes and times of another checkout say nothing about the files of this one
+            boolean sameCheckout = checkout.equals(previous.checkout);
+
+            Map<String, SyncedFile> synced = new TreeMap<>();
+            for (Path file : files) {
+                String name = sourceDirectory.relativize(file).toString().replace('\\', '/');
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                long size = attributes.size();
+                long modified = attributes.lastModifiedTime().toMillis();
+                Path destination = copy.resolve(name);
+
+                SyncedFile last = previous.files.remove(name);
+                boolean present = last != null && Files.isRegularFile(destination);
+                if (present && sameCheckout && last.size == size && last.modified == modified) {
+                    synced.put(name, last);
+                    continue;
+                }
+
+                String hash = Hashing.hash(file);
+                if (!present || !last.hash.equals(hash)) {
+                    Files.createDirectories(destination.getParent());
+                    Files.copy(file, destination, StandardCopyOption.REPLACE_EXISTING);
+                }
+                synced.put(name, new SyncedFile(hash, size, modified));
+            }
+
+            // Whatever is left was synced before, but is no longer part of the sources
+            for (String removed : previous.files.keySet()) {
+                Files.deleteIfExists(copy.resolve(removed));
+            }
+
+            Files.createDirectories(copy);
+            new Manifest(checkout, synced).write(manifestFile);
+            touch(copy);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not sync sources of " + sourceDirectory + " into " + copy, e);
+        }
+    }
+
+    /**
+     * The build directory for a configure identified by {@code identity}, created if it doesn't exist yet.
+     */
+    public Path buildDirectory(List<String> identity) {
+        Path directory = root.resolve(BUILDS).resolve(Hashing.hash(identity));
+        markUsed(directory);
+        return directory;
+    }
+
+    /**
+     * Records that a build directory is in use, so that it is the last to be evicted, recreating it if it already was.
+     * Builds and installs mark their directory as they run, as configuration may have happened long before in another
+     * daemon, or not at all when the configuration cache is reused.
+     */
+    public static void markUsed(Path buildDirectory) {
+        try {
+            Files.createDirectories(buildDirectory);
+            touch(buildDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create shared build directory " + buildDirectory, e);
+        }
+    }
+
+    /**
+     * Evicts entries that haven't been used within {@code maxAge}, then the least recently used entries until the
+     * cache is no larger than {@code maxSize} bytes. Entries in use by any process are left alone. This only does
+     * anything once per {@link #CLEANUP_INTERVAL}, as measuring the cache means walking every entry.
+     *
+     * Other processes keep using the cache while it is cleaned up, so entries may vanish while being measured. Failing
+     * to clean up never fails the build, it is only logged.
+     */
+    public void cleanupIfDue(long maxSize, Duration maxAge) {
+        Path marker = root.resolve(CLEANUP_MARKER);
+        try (Lock lock = lock(marker)) {
+            if (Files.isRegularFile(marker)
+                    && Files.getLastModifiedTime(marker).toInstant().plus(CLEANUP_INTERVAL).isAfter(Instant.now())) {
+                return;
+            }
+
+            Files.createDirectories(root);
+            if (!Files.exists(marker)) {
+                Files.createFile(marker);
+            }
+            touch(marker);
+
+            // An entry is a build directory and its copy of the sources, either of which may be missing
+            Set<String> names = new TreeSet<>();
+            for (String kind : List.of(SOURCES, BUILDS)) {
+                Path directory = root.resolve(kind);
+                if (!Files.isDirectory(directory)) {
+                    continue;
+                }
+                try (Stream<Path> children = Files.list(directory)) {
+                    children.filter(Files::isDirectory).forEach(child -> names.add(child.getFileName().toString()));
+                }
+            }
+            List<Entry> entries = new ArrayList<>();
+            for (String name : names) {
+                readEntry(root.resolve(BUILDS).resolve(name)).ifPresent(entries::add);
+            }
+
+            // Oldest first, so the size limit is met by evicting the least recently used entries
+            entries.sort(Comparator.comparing(entry -> entry.lastUsed));
+
+            long totalSize = entries.stream().mapToLong(entry -> entry.size).sum();
+            Instant expiry = Instant.now().minus(maxAge);
+            for (Entry entry : entries) {
+                if (totalSize <= maxSize && entry.lastUsed.isAfter(expiry)) {
+                    break;
+                }
+
+                Optional<Lock> entryLock = tryLock(entry.path);
+                if (entryLock.isEmpty()) {
+                    continue;
+                }
+                try (Lock held = entryLock.get()) {
+                    // Another process may have used the entry since it was measured, and released it again
+                    if (lastUsed(entry.path).map(lastUsed -> lastUsed.isAfter(entry.lastUsed)).orElse(true)) {
+                        continue;
+                    }
+                    Path sources = sourceDirectory(entry.path);
+                    deleteRecursively(entry.path);
+                    deleteRecursively(sources);
+                    Files.deleteIfExists(sources.resolveSibling(sources.getFileName() + MANIFEST_SUFFIX));
+                    totalSize -= entry.size;
+                } catch (IOException e) {
+                    LOGGER.warn("Could not evict {} from the shared CMake build cache", entry.path, e);
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.warn("Could not clean up shared CMake build cache {}", root, e);
+        }
+    }
+
+    private static Optional<Entry> readEntry(Path buildDirectory) throws IOException {
+        Optional<Instant> lastUsed = lastUsed(buildDirectory);
+        if (lastUsed.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(new Entry(buildDirectory, lastUsed.get(), sizeOf(buildDirectory) + sizeOf(sourceDirectory(buildDirectory))));
+    }
+
+    /**
+     * When the entry of {@code buildDirectory} was last used, or nothing if it no longer exists.
+     */
+    private static Optional<Instant> lastUsed(Path buildDirectory) throws IOException {
+        Optional<Instant> lastUsed = Optional.empty();
+        for (Path path : List.of(buildDirectory, sourceDirectory(buildDirectory))) {
+            try {
+                Instant modified = Files.getLastModifiedTime(path).toInstant();
+                if (lastUsed.isEmpty() || modified.isAfter(lastUsed.get())) {
+                    lastUsed = Optional.of(modified);
+                }
+            } catch (NoSuchFileException e) {
+                // Only one half of the entry may exist, or it may have been evicted since it was listed
+            }
+        }
+        return lastUsed;
+    }
+
+    /**
+     * Waits for exclusive use of a cache entry, across this process and any other.
+     */
+    public static Lock lock(Path entry) {
+        return acquire(entry, true).orElseThrow();
+    }
+
+    /**
+     * Takes exclusive use of a cache entry if nothing else is using it.
+     */
+    public static Optional<Lock> tryLock(Path entry) {
+        return acquire(entry, false);
+    }
+
+    private static Optional<Lock> acquire(Path entry, boolean wait) {
+        Path lockFile = entry.resolveSibling(entry.getFileName() + LOCK_SUFFIX).toAbsolutePath().normalize();
+        ReentrantLock processLock = PROCESS_LOCKS.computeIfAbsent(lockFile, path -> new ReentrantLock());
+
+        if (wait) {
+            processLock.lock();
+        } else if (!processLock.tryLock()) {
+            return Optional.empty();
+        }
+
+        // A thread that already holds this entry holds its file lock too
+        if (processLock.getHoldCount() > 1) {
+            return Optional.of(new Lock(processLock, null));
+        }
+
+        try {
+            Files.createDirectories(lockFile.getParent());
+            FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                FileLock fileLock = wait ? channel.lock() : channel.tryLock();
+                if (fileLock == null) {
+                    channel.close();
+                    processLock.unlock();
+                    return Optional.empty();
+                }
+                return Optional.of(new Lock(processLock, fileLock));
+            } catch (IOException | OverlappingFileLockException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            processLock.unlock();
+            throw new UncheckedIOException("Could not lock " + lockFile, e);
+        }
+    }
+
+    private static Optional<List<Path>> listTrackedFiles(ExecOperations execOperations, Path sourceDirectory) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            ExecResult result = execOperations.exec(execSpec -> {
+                execSpec.commandLine("git", "ls-files", "-z", "--cached", "--others", "--exclude-standard");
+                execSpec.setWorkingDir(sourceDirectory.toFile());
+                execSpec.setStandardOutput(output);
+                execSpec.setErrorOutput(new ByteArrayOutputStream());
+                execSpec.setIgnoreExitValue(true);
+            });
+            if (result.getExitValue() != 0) {
+                return Optional.empty();
+            }
+        } catch (GradleException e) {
+            // Without git, every file is synced
+            return Optional.empty();
+        }
+
+        // Tracked files that were deleted are still listed
+        return Optional.of(Arrays.stream(output.toString(StandardCharsets.UTF_8).split("\0"))
+                .filter(name -> !name.isEmpty())
+                .map(sourceDirectory::resolve)
+                .filter(Files::isRegularFile)
+                .collect(Collectors.toList()));
+    }
+
+    private static List<Path> listSourceFiles(Path sourceDirectory) {
+        List<Path> files = new ArrayList<>();
+        try {
+            Files.walkFileTree(sourceDirectory, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!dir.equals(sourceDirectory) && dir.getFileName().toString().startsWith(".")) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        files.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not list sources of " + sourceDirectory, e);
+        }
+        return files;
+    }
+
+    private static void touch(Path path) throws IOException {
+        Files.setLastModifiedTime(path, FileTime.from(Instant.now()));
+    }
+
+    /**
+     * The size of the files under {@code directory}, leaving out any that are deleted while it is measured.
+     */
+    private static long sizeOf(Path directory) throws IOException {
+        long[] size = {0};
+        Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    size[0] += attrs.size();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                if (exc instanceof NoSuchFileException) {
+                    return FileVisitResult.CONTINUE;
+                }
+                throw exc;
+            }
+        });
+        return size[0];
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static class SyncedFile {
+        private final String hash;
+        private final long size;
+        private final long modified;
+
+        private SyncedFile(String hash, long size, long modified) {
+            this.hash = hash;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * What was last synced into a copy of the sources: the checkout it came from, and the hash, size and modification
+     * time of each file in that checkout, one per line.
+     */
+    private static class Manifest {
+        private final String checkout;
+        private final Map<String, SyncedFile> files;
+
+        private Manifest(String checkout, Map<String, SyncedFile> files) {
+            this.checkout = checkout;
+            this.files = files;
+        }
+
+        private static Manifest read(Path manifestFile) throws IOException {
+            Map<String, SyncedFile> files = new HashMap<>();
+            if (!Files.isRegularFile(manifestFile)) {
+                return new Manifest("", files);
+            }
+            List<String> lines = Files.readAllLines(manifestFile, StandardCharsets.UTF_8);
+            for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length == 4) {
+                    files.put(fields[3], new SyncedFile(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+                }
+            }
+            return new Manifest(lines.isEmpty() ? "" : lines.get(0), files);
+        }
+
+        private void write(Path manifestFile) throws IOException {
+            List<String> lines = new ArrayList<>();
+            lines.add(checkout);
+            files.forEach((name, file) -> lines.add(file.hash + "\t" + file.size + "\t" + file.modified + "\t" + name));
+
+            // Written aside first, so an interrupted sync leaves the previous manifest behind rather than half of one
+            Path scratch = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+            Files.write(scratch, lines, StandardCharsets.UTF_8);
+            Files.move(scratch, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private static class Entry {
+        private final Path path;
+        private final Instant lastUsed;
+        private final long size;
+
+        private Entry(Path path, Instant lastUsed, long size) {
+            this.path = path;
+            this.lastUsed = lastUsed;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Exclusive use of a cache entry, given up when closed.
+     */
+    public static class Lock implements AutoCloseable {
+        private final ReentrantLock processLock;
+        private final FileLock fileLock;
+
+        private Lock(ReentrantLock processLock, FileLock fileLock) {
+            this.processLock = processLock;
+            this.fileLock = fileLock;
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (fileLock != null) {
+                    fileLock.channel().close();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not release cache lock", e);
+            } finally {
+                processLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package me.walkerknapp.usecmakelibrary.util;
+
+import org.gradle.api.Action;
+import org.gradle.language.base.internal.compile.VersionAwareCompiler;
+import org.gradle.nativeplatform.platform.NativePlatform;
+import org.gradle.nativeplatform.platform.internal.NativePlatformInternal;
+import org.gradle.nativeplatform.toolchain.NativeToolChain;
+import org.gradle.nativeplatform.toolchain.internal.*;
+import org.gradle.nativeplatform.toolchain.internal.compilespec.CCompileSpec;
+import org.gradle.nativeplatform.toolchain.internal.compilespec.CppCompileSpec;
+import org.gradle.nativeplatform.toolchain.internal.tools.CommandLineToolSearchResult;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * The tools and compiler arguments of a toolchain for a platform, as CMake needs them.
+ *
+ * Finding these means locating every tool and reflecting into Gradle's compiler internals, so results are kept for
+ * every build type and target machine of a build. They are kept with the toolchain instance they were probed from
+ * rather than for the life of the daemon, as which tools, search paths and arguments a toolchain uses is configured
+ * by the build script, and only Gradle's instance of the toolchain knows them.
+ *
+ * The Makefile generator matching a make is detected by running it, so that is persisted under the Gradle user home
+ * between daemons, for as long as the make it was detected from is unchanged.
+ */
+public class ToolChainProbe {
+    // Toolchains are created anew by every configuration of the build, which discards their probes with them
+    private static final Map<NativeToolChain, Map<String, ToolChainProbe>> PROBES = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final Map<String, String> MAKEFILE_GENERATORS = new ConcurrentHashMap<>();
+
+    private final File cCompiler;
+    private final File cppCompiler;
+    private final File archiver;
+    private final File objcopy;
+    private final File strip;
+    private final String cCompilerArgs;
+    private final String cppCompilerArgs;
+
+    private ToolChainProbe(File cCompiler, File cppCompiler, File archiver, File objcopy, File strip,
+                           String cCompilerArgs, String cppCompilerArgs) {
+        this.cCompiler = cCompiler;
+        this.cppCompiler = cppCompiler;
+        this.archiver = archiver;
+        this.objcopy = objcopy;
+        this.strip = strip;
+        this.cCompilerArgs = cCompilerArgs;
+        this.cppCompilerArgs = cppCompilerArgs;
+    }
+
+    /**
+     * Probes {@code toolChain} for {@code targetPlatform}, or reuses the result of an earlier probe of the same
+     * toolchain instance.
+     */
+    public static ToolChainProbe probe(NativeToolChain toolChain, NativePlatform targetPlatform) {
+        String key = String.join("/", targetPlatform.getName(),
+                targetPlatform.getOperatingSystem().getName(), targetPlatform.getArchitecture().getName());
+        Map<String, ToolChainProbe> probes;
+        synchronized (PROBES) {
+            probes = PROBES.computeIfAbsent(toolChain, t -> new ConcurrentHashMap<>());
+        }
+        return probes.computeIfAbsent(key, k -> compute(toolChain, targetPlatform));
+    }
+
+    /**
+     * Detects the Makefile generator matching {@code makeExecutable} using {@code detect}, or reuses an earlier
+     * detection while the make it found is unchanged.
+     */
+    public static String makefileGenerator(Path cacheDirectory, String makeExecutable, @Nullable String searchPath, Supplier<String> detect) {
+        Optional<File> make = findExecutable(makeExecutable, searchPath);
+        if (make.isEmpty()) {
+            return detect.get();
+        }
+
+        String key = Hashing.hash(List.of("make", make.get().getAbsolutePath(), fileStamp(make.get())));
+        return MAKEFILE_GENERATORS.computeIfAbsent(key, k -> read(cacheDirectory, k)
+                .map(properties -> properties.getProperty("generator"))
+                .orElseGet(() -> {
+                    String generator = detect.get();
+                    Properties properties = new Properties();
+                    properties.setProperty("generator", generator);
+                    write(cacheDirectory, k, properties);
+                    return generator;
+                }));
+    }
+
+    private static ToolChainProbe compute(NativeToolChain toolChain, NativePlatform targetPlatform) {
+        NativeToolChainInternal nativeToolChain = (NativeToolChainInternal) toolChain;
+        NativePlatformInternal nativePlatform = (NativePlatformInternal) targetPlatform;
+        PlatformToolProvider platformToolProvider = nativeToolChain.select(nativePlatform);
+
+        File cCompiler = locate(platformToolProvider, ToolType.C_COMPILER, "C compiler", nativePlatform, nativeToolChain);
+        File cppCompiler = locate(platformToolProvider, ToolType.CPP_COMPILER, "C++ compiler", nativePlatform, nativeToolChain);
+        File archiver = locate(platformToolProvider, ToolType.STATIC_LIB_ARCHIVER, "AR", nativePlatform, nativeToolChain);
+        File objcopy = locate(platformToolProvider, ToolType.SYMBOL_EXTRACTOR, "objcopy", nativePlatform, nativeToolChain);
+        File strip = locate(platformToolProvider, ToolType.STRIPPER, "strip", nativePlatform, nativeToolChain);
+
+        // Find arguments we need to extract from our c compiler / cpp compiler
+        CommandLineToolContext cppToolContext;
+        CommandLineToolContext cToolContext;
+        try {
+            Field rawCompiler = VersionAwareCompiler.class.getDeclaredField("compiler");
+            rawCompiler.setAccessible(true);
+            Field outputCompiler = OutputCleaningCompiler.class.getDeclaredField("compiler");
+            outputCompiler.setAccessible(true);
+
+            Object cppCompilerImpl = outputCompiler.get(rawCompiler.get(platformToolProvider.newCompiler(CppCompileSpec.class)));
+            Object cCompilerImpl = outputCompiler.get(rawCompiler.get(platformToolProvider.newCompiler(CCompileSpec.class)));
+
+            Field invocationContext = AbstractCompiler.class.getDeclaredField("invocationContext");
+            invocationContext.setAccessible(true);
+
+            cppToolContext = (CommandLineToolContext) invocationContext.get(cppCompilerImpl);
+            cToolContext = (CommandLineToolContext) invocationContext.get(cCompilerImpl);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new IllegalStateException("Could not access AbstractCompiler Internals, ", e);
+        }
+
+        return new ToolChainProbe(cCompiler, cppCompiler, archiver, objcopy, strip,
+                formatToolArgs(cToolContext.getArgAction()), formatToolArgs(cppToolContext.getArgAction()));
+    }
+
+    private static File locate(PlatformToolProvider platformToolProvider, ToolType toolType, String description,
+                               NativePlatformInternal nativePlatform, NativeToolChainInternal nativeToolChain) {
+        CommandLineToolSearchResult result = platformToolProvider.locateTool(toolType);
+        if (!result.isAvailable()) {
+            throw new AssertionError("Could not find " + description + " for platform " + nativePlatform.getDisplayName()
+                    + " using toolchain " + nativeToolChain.getDisplayName());
+        }
+        return result.getTool();
+    }
+
+    private static String formatToolArgs(Action<List<String>> argAction) {
+        List<String> args = new ArrayList<>();
+        argAction.execute(args);
+        return String.join(" ", args);
+    }
+
+    private static String fileStamp(File file) {
+        return file.length() + ":" + file.lastModified();
+    }
+
+    /**
+     * Finds {@code executable} the way the shell would, looking it up in {@code searchPath} unless it is absolute.
+     */
+    private static Optional<File> findExecutable(String executable, @Nullable String searchPath) {
+        File file = new File(executable);
+        if (file.isAbsolute()) {
+            return file.isFile() ? Optional.of(file) : Optional.empty();
+        }
+
+        if (searchPath == null) {
+            return Optional.empty();
+        }
+        for (String directory : searchPath.split(File.pathSeparator)) {
+            for (String name : List.of(executable, executable + ".exe")) {
+                File candidate = new File(directory, name);
+                if (candidate.isFile()) {
+                    return Optional.of(candidate);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static Optional<Properties> read(Path cacheDirectory, String key) {
+        Path file = cacheDirectory.resolve(key + ".properties");
+        if (!Files.isRegularFile(file)) {
+            return Optional.empty();
+        }
+
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+        return Optional.of(properties);
+    }
+
+    private static void write(Path cacheDirectory, String key, Properties properties) {
+        // Losing a probe result only costs probing again, so failures to persist are ignored
+        try {
+            Files.createDirectories(cacheDirectory);
+            Path temporary = Files.createTempFile(cacheDirectory, key, ".tmp");
+            try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                properties.store(writer, "Toolchain probe, written by gradle-use-cmake-library");
+            }
+            Files.move(temporary, cacheDirectory.resolve(key + ".properties"), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // Probe again next time
+        }
+    }
+
+    public File getCCompiler() {
+        return cCompiler;
+    }
+
+    public File getCppCompiler() {
+        return cppCompiler;
+    }
+
+    public File getArchiver() {
+        return archiver;
+    }
+
+    public File getObjcopy() {
+        return objcopy;
+    }
+
+    public File getStrip() {
+        return strip;
+    }
+
+    /**
+     * The arguments Gradle passes to the C compiler for this platform.
+     */
+    public String getCCompilerArgs() {
+        return cCompilerArgs;
+    }
+
+    /**
+     * The arguments Gradle passes to the C++ compiler for this platform.
+     */
+    public String getCppCompilerArgs() {
+        return cppCompilerArgs;
+    }
+
+    public List<File> getTools() {
+        return List.of(cCompiler, cppCompiler, archiver, objcopy, strip);
+    }
+}
@@ -1,5 +1,7 @@
 package me.walkerknapp.usecmakelibrary.util;
 
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
 import org.gradle.nativeplatform.platform.Architecture;
 import org.gradle.nativeplatform.platform.internal.ArchitectureInternal;
 import org.gradle.nativeplatform.platform.internal.Architectures;
@@ -8,9 +10,21 @@ import org.gradle.nativeplatform.toolchain.internal.msvcpp.VisualCppToolChain;
 import org.gradle.nativeplatform.toolchain.internal.msvcpp.VisualStudioInstall;
 
 import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 public class VisualCppUtil {
+    private static final Logger LOGGER = Logging.getLogger(VisualCppUtil.class);
+
+    // Toolchains are created per build, so this only remembers generators for as long as the build is running
+    private static final Map<VisualCppToolChain, String> GENERATORS = Collections.synchronizedMap(new WeakHashMap<>());
+
     public static String getCMakeGeneratorString(VisualCppToolChain toolChain) {
+        return GENERATORS.computeIfAbsent(toolChain, VisualCppUtil::findCMakeGeneratorString);
+    }
+
+    private static String findCMakeGeneratorString(VisualCppToolChain toolChain) {
         try {
             Field f = VisualCppToolChain.class.getDeclaredField("visualStudio");
             f.setAccessible(true);
@@ -35,7 +49,7 @@ public class VisualCppUtil {
             }
 
         } catch (NoSuchFieldException | IllegalAccessException e) {
-            e.printStackTrace();
+            LOGGER.warn("Could not determine the Visual Studio version of {}", toolChain.getDisplayName(), e);
             return "";
         }
     }